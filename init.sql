@@ -1,9 +1,14 @@
-drop table if exists marines, users;
+drop table if exists snapshot_marks, marine_deletions, marines, users;
 drop type if exists cat, weapon, melee, chapter;
+drop function if exists marines_touch, marines_log_delete, marines_notify, users_notify;
+drop sequence if exists marines_change_seq;
+
+create sequence marines_change_seq;
 
 create table users (
     name text primary key,
-    hash char(32) not null
+    hash char(32) not null,
+    seq bigint not null default nextval('marines_change_seq')
 );
 
 create type cat as enum (
@@ -40,5 +45,71 @@ create table marines (
     category cat,
     weapon weapon not null,
     melee melee not null,
-    chapter chapter check ( chapter is null or name(chapter) is not null )
+    chapter chapter check ( chapter is null or name(chapter) is not null ),
+    version bigint not null default 0,
+    seq bigint not null default nextval('marines_change_seq')
+);
+
+create index marines_seq on marines (seq);
+create unique index marines_id on marines (id);
+create index marines_owner on marines (owner, k);
+create index marines_health on marines (health, k);
+
+create table marine_deletions (
+    k bigint not null,
+    seq bigint not null default nextval('marines_change_seq')
 );
+
+create index marine_deletions_seq on marine_deletions (seq);
+
+create table snapshot_marks (
+    node text primary key,
+    mark bigint not null,
+    updated timestamptz not null default now()
+);
+
+create function marines_touch() returns trigger as $$
+begin
+    new.seq := nextval('marines_change_seq');
+    return new;
+end;
+$$ language plpgsql;
+
+create trigger marines_touch before update on marines
+    for each row execute procedure marines_touch();
+
+create function marines_log_delete() returns trigger as $$
+begin
+    if exists (select 1 from snapshot_marks) then
+        insert into marine_deletions (k) values (old.k);
+    end if;
+    return old;
+end;
+$$ language plpgsql;
+
+create trigger marines_log_delete after delete on marines
+    for each row execute procedure marines_log_delete();
+
+create function marines_notify() returns trigger as $$
+begin
+    if tg_op = 'DELETE' then
+        perform pg_notify('marines_changes', 'D,' || old.k || ',' || old.id);
+    else
+        perform pg_notify('marines_changes', left(tg_op, 1) || ',' || new.k || ',' || new.id);
+    end if;
+    return null;
+end;
+$$ language plpgsql;
+
+create trigger marines_notify after insert or update or delete on marines
+    for each row execute procedure marines_notify();
+
+create function users_notify() returns trigger as $$
+begin
+    perform pg_notify('users_changes', new.name);
+    return null;
+end;
+$$ language plpgsql;
+
+create trigger users_notify after insert or update on users
+    for each row execute procedure users_notify();
@@ -5,16 +5,12 @@ import marine.*;
 import org.checkerframework.checker.nullness.Opt;
 
 import java.io.*;
-import java.net.Socket;
-import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.LocalDate;
-import java.util.Arrays;
-import java.util.Optional;
-import java.util.Scanner;
+import java.util.*;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.function.Predicate;
@@ -25,13 +21,21 @@ public class Client {
     boolean exit = false;
     boolean inScript = false;
 
-    String host;
-    int port;
-    Socket socket;
-    DataInputStream dis;
-    OutputStream os;
     String user;
-    RequestFactory requestFactory = null;
+    List<Node> nodes = new ArrayList<>();
+    ShardMap shards = null;
+    List<Pending> scriptPending = new ArrayList<>();
+
+    private static final class Pending {
+        final Command command;
+        final List<Node> targets;
+        final List<Integer> ids = new ArrayList<>();
+
+        Pending(Command command, List<Node> targets) {
+            this.command = command;
+            this.targets = targets;
+        }
+    }
 
     private static String md2(String password) {
         try {
@@ -91,16 +95,23 @@ public class Client {
 
                 String passHash = md2(password);
 
-                Response response;
-                if (needRegister) {
-                    response = getResonse(new RegisterRequest(user, passHash));
-                } else {
-                    response = getResonse(new TestRequest(user, passHash));
+                Response response = null;
+                for (Node node : nodes) {
+                    node.sessionToken = 0;
+                    node.requestFactory = null;
+                    if (needRegister && node == nodes.get(0)) {
+                        response = node.getResponse(new RegisterRequest(user, passHash));
+                    } else {
+                        response = node.getResponse(new TestRequest(user, passHash));
+                    }
+                    if (!response.success || node.sessionToken == 0) {
+                        break;
+                    }
+                    node.requestFactory = new RequestFactory(node.sessionToken);
                 }
                 printResonse(response);
-                if (response.success) {
+                if (loggedIn()) {
                     this.user = user;
-                    requestFactory = new RequestFactory(user, passHash);
                     return;
                 }
             } catch (InterruptedException e) {
@@ -309,6 +320,8 @@ public class Client {
                     System.out.println("help print help");
                     System.out.println("info print info about current state of marines");
                     System.out.println("show print all marines");
+                    System.out.println("show_range from to print marines with keys from <= key < to");
+                    System.out.println("show_mine print marines you own");
                     System.out.println("insert key {marine} add new marine with given key");
                     System.out.println("update id {marine} update marine with given id");
                     System.out.println("remove_key key delete marine with given key");
@@ -321,11 +334,25 @@ public class Client {
                     System.out.println("group_counting_by_creation_date print number of marines with each creation date");
                     System.out.println("filter_greater_than_category {category} print marines with categories higher than the one given");
                     System.out.println("print_ascending print all marines sorted by health");
+                    System.out.println("filter [category>CATEGORY] [weapon=WEAPON] [melee=MELEE] print marines matching all the given conditions");
                     return Optional.empty();
                 } else if (command.equals("info")) {
                     return Optional.of(new InfoCommand());
                 } else if (command.equals("show")) {
                     return Optional.of(new ShowCommand());
+                } else if (command.equals("show_mine")) {
+                    return Optional.of(new ShowMineCommand());
+                } else if (command.equals("show_range")) {
+                    if (args.length != 3) {
+                        System.out.println("show_range takes 2 same-line arguments");
+                    } else {
+                        try {
+                            return Optional.of(new ShowRangeCommand(Long.parseLong(args[1]), Long.parseLong(args[2])));
+                        } catch (NumberFormatException e) {
+                            System.out.println("invalid key");
+                        }
+                    }
+                    return Optional.empty();
                 } else if (command.equals("insert")) {
                     Optional<Long> keyMb = simpleSingleArg(args,
                             Long::parseLong,
@@ -360,6 +387,10 @@ public class Client {
                                 inScript = true;
                                 work(scriptScanner, true);
                                 inScript = false;
+                                for (Pending pending : scriptPending) {
+                                    printResonse(finish(pending, false));
+                                }
+                                scriptPending.clear();
                             } else {
                                 System.out.println("file not readable");
                             }
@@ -413,6 +444,32 @@ public class Client {
                             return Optional.empty();
                         }
                     }
+                } else if (command.equals("filter")) {
+                    if (args.length < 2) {
+                        System.out.println("filter takes at least one same-line condition");
+                        return Optional.empty();
+                    }
+                    AstartesCategory category = null;
+                    Weapon weapon = null;
+                    MeleeWeapon melee = null;
+                    try {
+                        for (int i = 1; i < args.length; i++) {
+                            if (args[i].startsWith("category>")) {
+                                category = AstartesCategory.valueOf(args[i].substring("category>".length()));
+                            } else if (args[i].startsWith("weapon=")) {
+                                weapon = Weapon.valueOf(args[i].substring("weapon=".length()));
+                            } else if (args[i].startsWith("melee=")) {
+                                melee = MeleeWeapon.valueOf(args[i].substring("melee=".length()));
+                            } else {
+                                System.out.println("unknown condition " + args[i]);
+                                return Optional.empty();
+                            }
+                        }
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("invalid enum value");
+                        return Optional.empty();
+                    }
+                    return Optional.of(new FilterCommand(category, weapon, melee));
                 } else if (command.equals("print_ascending")) {
                     return Optional.of(new PrintAscendingCommand());
                 } else {
@@ -435,74 +492,102 @@ public class Client {
         }
     }
 
-    private Response getResonse(Request request) {
-        while (true) {
-            try {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                for (int i = 0; i < 4; i++) {
-                    baos.write(0);
-                }
-                ObjectOutputStream oos = new ObjectOutputStream(baos);
-                oos.writeObject(request);
-                oos.flush();
-                ByteBuffer bb = ByteBuffer.wrap(baos.toByteArray());
-                bb.putInt(0, baos.size()-4);
-
-                String res;
-                boolean success;
-
-                socket.getOutputStream().write(bb.array());
-                socket.getOutputStream().flush();
-                success = dis.readBoolean();
-                res = dis.readUTF();
-                return new Response(success, res);
-            } catch (IOException e) {
-                connect();
+    private boolean loggedIn() {
+        for (Node node : nodes) {
+            if (node.requestFactory == null) {
+                return false;
             }
         }
+        return true;
+    }
+
+    private List<Node> targets(Command command) {
+        if (shards == null) {
+            return nodes;
+        }
+        Long key = null;
+        if (command instanceof InsertCommand) {
+            key = ((InsertCommand) command).key;
+        } else if (command instanceof RemoveKeyCommand) {
+            key = ((RemoveKeyCommand) command).key;
+        } else if (command instanceof ReplaceIfLowerCommand) {
+            key = ((ReplaceIfLowerCommand) command).key;
+        }
+        return key == null ? nodes : Collections.singletonList(nodes.get(shards.owner(key)));
     }
 
-    private void connect() {
-        boolean firstTry = true;
-        while (true) {
-            try {
-                socket = new Socket(host, port);
-                os = socket.getOutputStream();
-                dis = new DataInputStream(socket.getInputStream());
-                if (!firstTry) {
-                    System.out.println("connected");
-                }
-                break;
-            } catch (IOException e) {
-                System.out.println("error, reconnecting");
-                try { Thread.sleep(1000); } catch (InterruptedException ignored) {}
-                firstTry = false;
+    private Pending send(Command command) {
+        Pending pending = new Pending(command, targets(command));
+        for (Node node : pending.targets) {
+            pending.ids.add(node.send(node.requestFactory.request(command)));
+        }
+        return pending;
+    }
+
+    private Response finish(Pending pending, boolean stream) {
+        if (pending.targets.size() == 1) {
+            return pending.targets.get(0).await(pending.ids.get(0), stream);
+        }
+        boolean success = true;
+        List<String> outputs = new ArrayList<>();
+        for (int i = 0; i < pending.targets.size(); i++) {
+            Response response = pending.targets.get(i).await(pending.ids.get(i), false);
+            success &= response.success;
+            outputs.add(response.response);
+        }
+        return new Response(success, Merge.merge(pending.command, outputs));
+    }
+
+    private void fetchShardMap() {
+        Node seed = nodes.get(0);
+        Response response = seed.getResponse(new ShardMapRequest());
+        shards = ShardMap.parse(response.response);
+        if (shards != null) {
+            seed.close();
+            nodes = new ArrayList<>();
+            for (int i = 0; i < shards.size(); i++) {
+                nodes.add(Node.of(shards.node(i)));
             }
+            System.out.println("connected to " + shards.size() + " shards");
         }
     }
 
     private void work(Scanner scanner, boolean quiet) {
-        if (requestFactory == null) {
-            login(scanner, quiet);
-        }
         while (!exit) {
+            if (!loggedIn()) {
+                login(scanner, quiet);
+                if (!loggedIn()) {
+                    break;
+                }
+            }
             Optional<Command> mbCommand = readCommand(scanner, quiet);
             if (exit) {
                 break;
             }
-            mbCommand.map(requestFactory::request)
-                    .map(this::getResonse).ifPresent(this::printResonse);
+            if (inScript) {
+                mbCommand.map(this::send).ifPresent(scriptPending::add);
+            } else {
+                mbCommand.map(command -> finish(send(command), true)).ifPresent(response -> {
+                    printResonse(response);
+                    if (!response.success) {
+                        for (Node node : nodes) {
+                            node.requestFactory = null;
+                        }
+                    }
+                });
+            }
         }
     }
 
     private Client(String host, int port) {
-        this.host = host;
-        this.port = port;
-        connect();
+        nodes.add(new Node(host, port));
+        fetchShardMap();
     }
 
     public static void main(String[] args) throws IOException {
-        Client client = new Client("localhost", 3345);
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 3345;
+        Client client = new Client(host, port);
 
         client.work(new Scanner(System.in), false);
     }
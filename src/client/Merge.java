@@ -0,0 +1,124 @@
+package client;
+
+import message.*;
+
+import java.util.*;
+
+/**
+ * Combines the text outputs of a command that was sent to every shard into what a single
+ * server holding the whole collection would have printed.
+ */
+class Merge {
+
+    private static final String BLOCK_SEPARATOR = "\n\n";
+
+    static String merge(Command command, List<String> outputs) {
+        if (command instanceof InfoCommand) {
+            return info(outputs);
+        } else if (command instanceof GroupCountingByCreationDateCommand) {
+            return counts(outputs);
+        } else if (command instanceof ShowCommand || command instanceof ShowRangeCommand
+                || command instanceof ShowMineCommand) {
+            return blocks(outputs, Comparator.comparingLong(block -> longField(block, "Key: ")));
+        } else if (command instanceof PrintAscendingCommand) {
+            return blocks(outputs, Comparator.comparingDouble(block -> doubleField(block, "Health: ")));
+        } else if (command instanceof FilterCommand || command instanceof FilterGreaterThanCategoryCommand) {
+            return blocks(outputs, Comparator.comparingLong(block -> longField(block, "ID: ")));
+        } else if (command instanceof UpdateCommand) {
+            return update(outputs);
+        }
+        return distinct(outputs);
+    }
+
+    private static String info(List<String> outputs) {
+        String type = null;
+        long n = 0;
+        String newest = null;
+        for (String output : outputs) {
+            for (String line : output.split("\n")) {
+                if (line.startsWith("type: ") && type == null) {
+                    type = line;
+                } else if (line.startsWith("number of elements: ")) {
+                    n += Long.parseLong(line.substring("number of elements: ".length()));
+                } else if (line.startsWith("newest marine created on ")) {
+                    String date = line.substring("newest marine created on ".length());
+                    if (newest == null || date.compareTo(newest) > 0) {
+                        newest = date;
+                    }
+                }
+            }
+        }
+        StringBuilder builder = new StringBuilder();
+        if (type != null) {
+            builder.append(type).append(" across ").append(outputs.size()).append(" shards\n");
+        }
+        builder.append("number of elements: ").append(n).append('\n');
+        if (newest != null) {
+            builder.append("newest marine created on ").append(newest).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private static String counts(List<String> outputs) {
+        SortedMap<String, Long> counts = new TreeMap<>();
+        for (String output : outputs) {
+            for (String line : output.split("\n")) {
+                int colon = line.lastIndexOf(": ");
+                if (colon > 0) {
+                    counts.merge(line.substring(0, colon), Long.parseLong(line.substring(colon + 2)), Long::sum);
+                }
+            }
+        }
+        StringBuilder builder = new StringBuilder();
+        counts.forEach((date, n) -> builder.append(date).append(": ").append(n).append('\n'));
+        return builder.toString();
+    }
+
+    private static String field(String block, String name) {
+        for (String line : block.split("\n")) {
+            if (line.startsWith(name)) {
+                return line.substring(name.length());
+            }
+        }
+        return null;
+    }
+
+    // keys and ids are longs, which doubles can't tell apart past 2^53
+    private static long longField(String block, String name) {
+        String value = field(block, name);
+        return value == null ? Long.MAX_VALUE : Long.parseLong(value);
+    }
+
+    private static double doubleField(String block, String name) {
+        String value = field(block, name);
+        return value == null ? Double.POSITIVE_INFINITY : Double.parseDouble(value);
+    }
+
+    private static String blocks(List<String> outputs, Comparator<String> order) {
+        List<String> blocks = new ArrayList<>();
+        for (String output : outputs) {
+            for (String block : output.split(BLOCK_SEPARATOR)) {
+                block = block.trim();
+                if (!block.isEmpty()) {
+                    blocks.add(block);
+                }
+            }
+        }
+        blocks.sort(order);
+        return blocks.isEmpty() ? "" : String.join(BLOCK_SEPARATOR, blocks) + "\n";
+    }
+
+    private static String update(List<String> outputs) {
+        List<String> found = new ArrayList<>();
+        for (String output : outputs) {
+            if (!output.equals("id not found\n")) {
+                found.add(output);
+            }
+        }
+        return found.isEmpty() ? "id not found\n" : distinct(found);
+    }
+
+    private static String distinct(List<String> outputs) {
+        return String.join("", new LinkedHashSet<>(outputs));
+    }
+}
@@ -0,0 +1,140 @@
+package client;
+
+import message.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pipelined connection to one server: requests are numbered, responses may arrive interleaved,
+ * and everything still outstanding is resent after a reconnect.
+ */
+class Node {
+
+    final String host;
+    final int port;
+    Socket socket;
+    DataInputStream dis;
+    OutputStream os;
+    RequestFactory requestFactory = null;
+    long sessionToken = 0;
+
+    int nextId = 0;
+    Map<Integer, Request> outstanding = new LinkedHashMap<>();
+    Map<Integer, Response> arrived = new HashMap<>();
+    Map<Integer, ByteArrayOutputStream> partial = new HashMap<>();
+    byte[] payload = new byte[ResponseFrame.MAX_PAYLOAD];
+
+    Node(String host, int port) {
+        this.host = host;
+        this.port = port;
+        connect();
+    }
+
+    static Node of(String address) {
+        int colon = address.lastIndexOf(':');
+        return new Node(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    private void sendFrame(Request request) throws IOException {
+        ByteBuffer bb = Codec.encode(request);
+        os.write(bb.array(), 0, bb.limit());
+        os.flush();
+    }
+
+    int send(Request request) {
+        request.id = nextId++;
+        outstanding.put(request.id, request);
+        try {
+            sendFrame(request);
+        } catch (IOException e) {
+            reconnect();
+        }
+        return request.id;
+    }
+
+    Response await(int id, boolean stream) {
+        while (!arrived.containsKey(id)) {
+            try {
+                int responseId = dis.readInt();
+                byte kind = dis.readByte();
+                int length = dis.readUnsignedShort();
+                dis.readFully(payload, 0, length);
+                if (!outstanding.containsKey(responseId)) {
+                    continue;
+                }
+                if (kind == ResponseFrame.TOKEN) {
+                    sessionToken = ByteBuffer.wrap(payload, 0, length).getLong();
+                    continue;
+                }
+                if (stream && responseId == id) {
+                    System.out.write(payload, 0, length);
+                } else {
+                    partial.computeIfAbsent(responseId, i -> new ByteArrayOutputStream()).write(payload, 0, length);
+                }
+                if (kind != ResponseFrame.CHUNK) {
+                    outstanding.remove(responseId);
+                    ByteArrayOutputStream baos = partial.remove(responseId);
+                    String res = baos == null ? "" : new String(baos.toByteArray(), StandardCharsets.UTF_8);
+                    arrived.put(responseId, new Response(kind == ResponseFrame.DONE, res));
+                }
+            } catch (IOException e) {
+                reconnect();
+            }
+        }
+        System.out.flush();
+        return arrived.remove(id);
+    }
+
+    Response getResponse(Request request) {
+        return await(send(request), false);
+    }
+
+    private void reconnect() {
+        partial.clear();
+        while (true) {
+            connect();
+            try {
+                for (Request request : outstanding.values()) {
+                    sendFrame(request);
+                }
+                return;
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void connect() {
+        boolean firstTry = true;
+        while (true) {
+            try {
+                socket = new Socket(host, port);
+                os = socket.getOutputStream();
+                dis = new DataInputStream(socket.getInputStream());
+                if (!firstTry) {
+                    System.out.println("connected");
+                }
+                break;
+            } catch (IOException e) {
+                System.out.println("error, reconnecting");
+                try { Thread.sleep(1000); } catch (InterruptedException ignored) {}
+                firstTry = false;
+            }
+        }
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -82,6 +82,14 @@ public class SpaceMarine implements Comparable<SpaceMarine>, Serializable {
         this.meleeWeapon = meleeWeapon;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
     public Chapter getChapter() {
         return chapter;
     }
@@ -95,6 +103,7 @@ public class SpaceMarine implements Comparable<SpaceMarine>, Serializable {
     private Weapon weaponType; //Поле не может быть null
     private MeleeWeapon meleeWeapon; //Поле не может быть null
     private Chapter chapter; //Поле может быть null
+    private long version;
 
     public SpaceMarine(Long id, String name, Coordinates coordinates, LocalDate creationDate, Float health, AstartesCategory category, Weapon weaponType, MeleeWeapon meleeWeapon, Chapter chapter, String owner) {
         this.id = id;
@@ -0,0 +1,372 @@
+package message;
+
+import marine.*;
+
+import java.net.ProtocolException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+
+public class Codec {
+    public static final byte VERSION = 2;
+
+    private static final byte NORMAL_REQUEST = 1;
+    private static final byte TEST_REQUEST = 2;
+    private static final byte REGISTER_REQUEST = 3;
+    private static final byte SHARD_MAP_REQUEST = 4;
+
+    private static final byte INFO = 1;
+    private static final byte SHOW = 2;
+    private static final byte INSERT = 3;
+    private static final byte UPDATE = 4;
+    private static final byte REMOVE_KEY = 5;
+    private static final byte CLEAR = 6;
+    private static final byte REMOVE_LOWER = 7;
+    private static final byte REPLACE_IF_LOWER = 8;
+    private static final byte REMOVE_LOWER_KEY = 9;
+    private static final byte GROUP_COUNTING_BY_CREATION_DATE = 10;
+    private static final byte FILTER_GREATER_THAN_CATEGORY = 11;
+    private static final byte PRINT_ASCENDING = 12;
+    private static final byte SHOW_RANGE = 13;
+    private static final byte SHOW_MINE = 14;
+    private static final byte FILTER = 15;
+
+    private static final int HAS_ID = 1;
+    private static final int HAS_DATE = 1 << 1;
+    private static final int HAS_CATEGORY = 1 << 2;
+    private static final int HAS_CHAPTER = 1 << 3;
+    private static final int HAS_Y = 1 << 4;
+    private static final int HAS_VERSION = 1 << 5;
+
+    public static ByteBuffer encode(Request request) {
+        int capacity = 256;
+        while (true) {
+            ByteBuffer out = ByteBuffer.allocate(capacity);
+            try {
+                out.putInt(0);
+                writeRequest(out, request);
+                out.putInt(0, out.position() - 4);
+                out.flip();
+                return out;
+            } catch (BufferOverflowException e) {
+                capacity *= 2;
+            }
+        }
+    }
+
+    public static void writeRequest(ByteBuffer out, Request request) {
+        out.put(VERSION);
+        if (request instanceof NormalRequest) {
+            out.put(NORMAL_REQUEST);
+        } else if (request instanceof TestRequest) {
+            out.put(TEST_REQUEST);
+        } else if (request instanceof RegisterRequest) {
+            out.put(REGISTER_REQUEST);
+        } else if (request instanceof ShardMapRequest) {
+            out.put(SHARD_MAP_REQUEST);
+        } else {
+            throw new IllegalArgumentException("unknown request " + request.getClass().getName());
+        }
+        writeVarLong(out, request.id);
+        writeString(out, request.user);
+        writeString(out, request.passHash);
+        if (request instanceof NormalRequest) {
+            writeVarLong(out, ((NormalRequest) request).token);
+            writeCommand(out, ((NormalRequest) request).command);
+        }
+    }
+
+    public static Request readRequest(ByteBuffer in) throws ProtocolException {
+        try {
+            byte version = in.get();
+            if (version != VERSION) {
+                throw new ProtocolException("unsupported message version " + version);
+            }
+            byte tag = in.get();
+            int id = (int) readVarLong(in);
+            String user = readString(in);
+            String passHash = readString(in);
+            Request request;
+            if (tag == NORMAL_REQUEST) {
+                long token = readVarLong(in);
+                NormalRequest normalRequest = new NormalRequest(user, passHash, readCommand(in));
+                normalRequest.token = token;
+                request = normalRequest;
+            } else if (tag == TEST_REQUEST) {
+                request = new TestRequest(user, passHash);
+            } else if (tag == REGISTER_REQUEST) {
+                request = new RegisterRequest(user, passHash);
+            } else if (tag == SHARD_MAP_REQUEST) {
+                request = new ShardMapRequest();
+            } else {
+                throw new ProtocolException("unknown request tag " + tag);
+            }
+            request.id = id;
+            return request;
+        } catch (RuntimeException e) {
+            throw new ProtocolException("malformed message");
+        }
+    }
+
+    private static void writeCommand(ByteBuffer out, Command command) {
+        if (command instanceof InfoCommand) {
+            out.put(INFO);
+        } else if (command instanceof ShowCommand) {
+            out.put(SHOW);
+        } else if (command instanceof InsertCommand) {
+            out.put(INSERT);
+            writeVarLong(out, ((InsertCommand) command).key);
+            writeMarine(out, ((InsertCommand) command).marine);
+        } else if (command instanceof UpdateCommand) {
+            out.put(UPDATE);
+            writeVarLong(out, ((UpdateCommand) command).id);
+            writeMarine(out, ((UpdateCommand) command).marine);
+        } else if (command instanceof RemoveKeyCommand) {
+            out.put(REMOVE_KEY);
+            writeVarLong(out, ((RemoveKeyCommand) command).key);
+        } else if (command instanceof ClearCommand) {
+            out.put(CLEAR);
+        } else if (command instanceof RemoveLowerCommand) {
+            out.put(REMOVE_LOWER);
+            writeMarine(out, ((RemoveLowerCommand) command).marine);
+        } else if (command instanceof ReplaceIfLowerCommand) {
+            out.put(REPLACE_IF_LOWER);
+            writeVarLong(out, ((ReplaceIfLowerCommand) command).key);
+            writeMarine(out, ((ReplaceIfLowerCommand) command).marine);
+        } else if (command instanceof RemoveLowerKeyCommand) {
+            out.put(REMOVE_LOWER_KEY);
+            writeVarLong(out, ((RemoveLowerKeyCommand) command).key);
+        } else if (command instanceof GroupCountingByCreationDateCommand) {
+            out.put(GROUP_COUNTING_BY_CREATION_DATE);
+        } else if (command instanceof FilterGreaterThanCategoryCommand) {
+            out.put(FILTER_GREATER_THAN_CATEGORY);
+            writeEnum(out, ((FilterGreaterThanCategoryCommand) command).category);
+        } else if (command instanceof PrintAscendingCommand) {
+            out.put(PRINT_ASCENDING);
+        } else if (command instanceof ShowRangeCommand) {
+            out.put(SHOW_RANGE);
+            writeVarLong(out, ((ShowRangeCommand) command).from);
+            writeVarLong(out, ((ShowRangeCommand) command).to);
+        } else if (command instanceof ShowMineCommand) {
+            out.put(SHOW_MINE);
+        } else if (command instanceof FilterCommand) {
+            out.put(FILTER);
+            writeOptionalEnum(out, ((FilterCommand) command).categoryAbove);
+            writeOptionalEnum(out, ((FilterCommand) command).weapon);
+            writeOptionalEnum(out, ((FilterCommand) command).meleeWeapon);
+        } else {
+            throw new IllegalArgumentException("unknown command " + command.getClass().getName());
+        }
+    }
+
+    private static Command readCommand(ByteBuffer in) throws ProtocolException {
+        byte tag = in.get();
+        switch (tag) {
+            case INFO:
+                return new InfoCommand();
+            case SHOW:
+                return new ShowCommand();
+            case INSERT:
+                return new InsertCommand(readVarLong(in), readMarine(in, false));
+            case UPDATE:
+                return new UpdateCommand(readVarLong(in), readMarine(in, false));
+            case REMOVE_KEY:
+                return new RemoveKeyCommand(readVarLong(in));
+            case CLEAR:
+                return new ClearCommand();
+            case REMOVE_LOWER:
+                return new RemoveLowerCommand(readMarine(in, false));
+            case REPLACE_IF_LOWER:
+                return new ReplaceIfLowerCommand(readVarLong(in), readMarine(in, false));
+            case REMOVE_LOWER_KEY:
+                return new RemoveLowerKeyCommand(readVarLong(in));
+            case GROUP_COUNTING_BY_CREATION_DATE:
+                return new GroupCountingByCreationDateCommand();
+            case FILTER_GREATER_THAN_CATEGORY:
+                return new FilterGreaterThanCategoryCommand(readEnum(in, AstartesCategory.values()));
+            case PRINT_ASCENDING:
+                return new PrintAscendingCommand();
+            case SHOW_RANGE:
+                return new ShowRangeCommand(readVarLong(in), readVarLong(in));
+            case SHOW_MINE:
+                return new ShowMineCommand();
+            case FILTER:
+                return new FilterCommand(readOptionalEnum(in, AstartesCategory.values()),
+                        readOptionalEnum(in, Weapon.values()),
+                        readOptionalEnum(in, MeleeWeapon.values()));
+            default:
+                throw new ProtocolException("unknown command tag " + tag);
+        }
+    }
+
+    public static void writeMarine(ByteBuffer out, SpaceMarine marine) {
+        int flags = 0;
+        if (marine.getId() != null) {
+            flags |= HAS_ID;
+        }
+        if (marine.getCreationDate() != null) {
+            flags |= HAS_DATE;
+        }
+        if (marine.getCategory() != null) {
+            flags |= HAS_CATEGORY;
+        }
+        if (marine.getChapter() != null) {
+            flags |= HAS_CHAPTER;
+        }
+        if (marine.getCoordinates().getY() != null) {
+            flags |= HAS_Y;
+        }
+        if (marine.getVersion() != 0) {
+            flags |= HAS_VERSION;
+        }
+        out.put((byte) flags);
+        if ((flags & HAS_ID) != 0) {
+            writeVarLong(out, marine.getId());
+        }
+        writeString(out, marine.getName());
+        out.putDouble(marine.getCoordinates().getX());
+        if ((flags & HAS_Y) != 0) {
+            out.putDouble(marine.getCoordinates().getY());
+        }
+        if ((flags & HAS_DATE) != 0) {
+            writeVarLong(out, marine.getCreationDate().toEpochDay());
+        }
+        out.putFloat(marine.getHealth());
+        if ((flags & HAS_CATEGORY) != 0) {
+            writeEnum(out, marine.getCategory());
+        }
+        writeEnum(out, marine.getWeaponType());
+        writeEnum(out, marine.getMeleeWeapon());
+        if ((flags & HAS_CHAPTER) != 0) {
+            writeString(out, marine.getChapter().getName());
+            writeString(out, marine.getChapter().getWorld());
+        }
+        writeString(out, marine.getOwner());
+        if ((flags & HAS_VERSION) != 0) {
+            writeVarLong(out, marine.getVersion());
+        }
+    }
+
+    public static SpaceMarine readMarine(ByteBuffer in) {
+        return readMarine(in, true);
+    }
+
+    /**
+     * Decodes a marine and checks the fields that may not be missing. The creation date is only
+     * taken from {@code trusted} sources such as snapshots; a client's is skipped, since the server
+     * assigns it.
+     */
+    private static SpaceMarine readMarine(ByteBuffer in, boolean trusted) {
+        int flags = in.get();
+        Long id = (flags & HAS_ID) != 0 ? readVarLong(in) : null;
+        String name = readString(in);
+        double x = in.getDouble();
+        Double y = (flags & HAS_Y) != 0 ? in.getDouble() : null;
+        LocalDate date = null;
+        if ((flags & HAS_DATE) != 0) {
+            long day = readVarLong(in);
+            if (trusted) {
+                try {
+                    date = LocalDate.ofEpochDay(day);
+                } catch (DateTimeException e) {
+                    throw new IllegalArgumentException("bad creation date " + day);
+                }
+            }
+        }
+        float health = in.getFloat();
+        AstartesCategory category = (flags & HAS_CATEGORY) != 0 ? readEnum(in, AstartesCategory.values()) : null;
+        Weapon weapon = readEnum(in, Weapon.values());
+        MeleeWeapon meleeWeapon = readEnum(in, MeleeWeapon.values());
+        Chapter chapter = null;
+        if ((flags & HAS_CHAPTER) != 0) {
+            String chapterName = readString(in);
+            chapter = new Chapter(chapterName, readString(in));
+        }
+        String owner = readString(in);
+        if (name == null || name.isEmpty() || y == null || !(health > 0)) {
+            throw new IllegalArgumentException("marine is missing required fields");
+        }
+        SpaceMarine marine = new SpaceMarine(id, name, new Coordinates(x, y), date, health, category, weapon, meleeWeapon,
+                chapter, owner);
+        if ((flags & HAS_VERSION) != 0) {
+            marine.setVersion(readVarLong(in));
+        }
+        return marine;
+    }
+
+    private static void writeEnum(ByteBuffer out, Enum<?> value) {
+        out.put((byte) value.ordinal());
+    }
+
+    private static <E extends Enum<E>> E readEnum(ByteBuffer in, E[] values) {
+        int ordinal = in.get();
+        if (ordinal < 0 || ordinal >= values.length) {
+            throw new IllegalArgumentException("bad enum ordinal " + ordinal);
+        }
+        return values[ordinal];
+    }
+
+    private static void writeOptionalEnum(ByteBuffer out, Enum<?> value) {
+        out.put(value == null ? -1 : (byte) value.ordinal());
+    }
+
+    private static <E extends Enum<E>> E readOptionalEnum(ByteBuffer in, E[] values) {
+        if (in.get(in.position()) == -1) {
+            in.get();
+            return null;
+        }
+        return readEnum(in, values);
+    }
+
+    public static void writeVarLong(ByteBuffer out, long value) {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            out.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    public static long readVarLong(ByteBuffer in) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (v >>> 1) ^ -(v & 1);
+            }
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+
+    public static void writeString(ByteBuffer out, String s) {
+        if (s == null) {
+            writeVarLong(out, -1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.put(bytes);
+    }
+
+    public static String readString(ByteBuffer in) {
+        long length = readVarLong(in);
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("bad string length " + length);
+        }
+        int n = (int) length;
+        if (in.hasArray()) {
+            String s = new String(in.array(), in.arrayOffset() + in.position(), n, StandardCharsets.UTF_8);
+            in.position(in.position() + n);
+            return s;
+        }
+        byte[] bytes = new byte[n];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
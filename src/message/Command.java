@@ -1,11 +1,9 @@
 package message;
 
-import server.ClientState;
+import server.RequestState;
 import server.Server;
 
-import java.io.Serializable;
-
-public abstract class Command implements Serializable {
-    public ClientState state;
+public abstract class Command {
+    public RequestState state;
     public abstract void execute(Server server, String currentUser);
 }
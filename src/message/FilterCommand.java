@@ -0,0 +1,23 @@
+package message;
+
+import marine.AstartesCategory;
+import marine.MeleeWeapon;
+import marine.Weapon;
+import server.Server;
+
+public class FilterCommand extends Command {
+    @Override
+    public void execute(Server server, String currentUser) {
+        server.executeFilter(this);
+    }
+
+    public AstartesCategory categoryAbove;
+    public Weapon weapon;
+    public MeleeWeapon meleeWeapon;
+
+    public FilterCommand(AstartesCategory categoryAbove, Weapon weapon, MeleeWeapon meleeWeapon) {
+        this.categoryAbove = categoryAbove;
+        this.weapon = weapon;
+        this.meleeWeapon = meleeWeapon;
+    }
+}
@@ -5,12 +5,18 @@ import server.Server;
 public class NormalRequest extends Request {
 
     public Command command;
+    public long token;
 
     public NormalRequest(String user, String passHash, Command command) {
         super(user, passHash);
         this.command = command;
     }
 
+    public NormalRequest(long token, Command command) {
+        this(null, null, command);
+        this.token = token;
+    }
+
     @Override
     public void handle(Server server) {
         server.handleNormalRequest(this);
@@ -1,14 +1,13 @@
 package message;
 
-import server.ClientState;
+import server.RequestState;
 import server.Server;
 
-import java.io.Serializable;
-
-public abstract class Request implements Serializable {
+public abstract class Request {
     public String user;
     public String passHash;
-    public ClientState state;
+    public int id;
+    public RequestState state;
 
     public Request(String user, String passHash) {
         this.user = user;
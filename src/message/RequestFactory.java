@@ -1,15 +1,13 @@
 package message;
 
 public class RequestFactory {
-    private final String user;
-    private final String passHash;
+    private final long token;
 
-    public RequestFactory(String user, String passHash) {
-        this.user = user;
-        this.passHash = passHash;
+    public RequestFactory(long token) {
+        this.token = token;
     }
 
     public Request request(Command command) {
-        return new NormalRequest(user, passHash, command);
+        return new NormalRequest(token, command);
     }
 }
@@ -0,0 +1,11 @@
+package message;
+
+public class ResponseFrame {
+    public static final byte CHUNK = 0;
+    public static final byte DONE = 1;
+    public static final byte FAILED = 2;
+    public static final byte TOKEN = 3;
+
+    public static final int HEADER_SIZE = 7;
+    public static final int MAX_PAYLOAD = 8192;
+}
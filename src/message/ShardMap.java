@@ -0,0 +1,82 @@
+package message;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Consistent-hash ring assigning marine keys to server nodes. Every node gets a number of virtual
+ * points on the ring, and a key belongs to the node owning the first point at or after its hash.
+ */
+public class ShardMap {
+
+    private static final int POINTS_PER_NODE = 64;
+
+    private final List<String> nodes;
+    private final long[] ring;
+    private final int[] owners;
+
+    public ShardMap(List<String> nodes) {
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        int n = nodes.size() * POINTS_PER_NODE;
+        long[][] points = new long[n][];
+        for (int node = 0; node < nodes.size(); node++) {
+            long base = nodes.get(node).hashCode();
+            for (int i = 0; i < POINTS_PER_NODE; i++) {
+                points[node * POINTS_PER_NODE + i] = new long[]{mix(base << 32 | i), node};
+            }
+        }
+        Arrays.sort(points, (a, b) -> Long.compare(a[0], b[0]));
+        ring = new long[n];
+        owners = new int[n];
+        for (int i = 0; i < n; i++) {
+            ring[i] = points[i][0];
+            owners[i] = (int) points[i][1];
+        }
+    }
+
+    /**
+     * Parses a comma-separated list of host:port addresses; an empty spec means no sharding.
+     */
+    public static ShardMap parse(String spec) {
+        if (spec == null || spec.trim().isEmpty()) {
+            return null;
+        }
+        List<String> nodes = new ArrayList<>();
+        for (String node : spec.trim().split(" *, *")) {
+            nodes.add(node);
+        }
+        return new ShardMap(nodes);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public int owner(long key) {
+        int i = Arrays.binarySearch(ring, mix(key));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return owners[i == ring.length ? 0 : i];
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public String node(int index) {
+        return nodes.get(index);
+    }
+
+    @Override
+    public String toString() {
+        return String.join(",", nodes);
+    }
+}
@@ -0,0 +1,15 @@
+package message;
+
+import server.Server;
+
+public class ShardMapRequest extends Request {
+
+    public ShardMapRequest() {
+        super(null, null);
+    }
+
+    @Override
+    public void handle(Server server) {
+        server.handleShardMapRequest(this);
+    }
+}
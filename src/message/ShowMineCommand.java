@@ -0,0 +1,10 @@
+package message;
+
+import server.Server;
+
+public class ShowMineCommand extends Command {
+    @Override
+    public void execute(Server server, String currentUser) {
+        server.executeShowMine(state, currentUser);
+    }
+}
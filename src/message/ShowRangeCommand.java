@@ -0,0 +1,18 @@
+package message;
+
+import server.Server;
+
+public class ShowRangeCommand extends Command {
+    @Override
+    public void execute(Server server, String currentUser) {
+        server.executeShowRange(this);
+    }
+
+    public long from;
+    public long to;
+
+    public ShowRangeCommand(long from, long to) {
+        this.from = from;
+        this.to = to;
+    }
+}
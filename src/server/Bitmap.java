@@ -0,0 +1,130 @@
+package server;
+
+import java.util.*;
+
+/**
+ * Immutable compressed bitmap: 64-bit words keyed by word index, with all-zero words left out,
+ * so sparse and empty regions cost nothing and set operations work a word at a time.
+ */
+final class Bitmap implements Iterable<Long> {
+
+    static final Bitmap EMPTY = new Bitmap(PersistentTreeMap.<Long, Long>empty());
+
+    private final PersistentTreeMap<Long, Long> words;
+
+    private Bitmap(PersistentTreeMap<Long, Long> words) {
+        this.words = words;
+    }
+
+    private static Bitmap of(List<Map.Entry<Long, Long>> words) {
+        return new Bitmap(PersistentTreeMap.fromSorted(Comparator.<Long>naturalOrder(), words));
+    }
+
+    /**
+     * Collects bits in any order for a bulk build.
+     */
+    static final class Builder {
+        private final TreeMap<Long, Long> words = new TreeMap<>();
+
+        void set(long bit) {
+            words.merge(bit >> 6, 1L << bit, (a, b) -> a | b);
+        }
+
+        Bitmap build() {
+            return of(new ArrayList<>(words.entrySet()));
+        }
+    }
+
+    boolean isEmpty() {
+        return words.isEmpty();
+    }
+
+    Bitmap set(long bit) {
+        Long index = bit >> 6;
+        Long word = words.get(index);
+        long next = (word == null ? 0 : word) | 1L << bit;
+        return word != null && word == next ? this : new Bitmap(words.put(index, next));
+    }
+
+    Bitmap clear(long bit) {
+        Long index = bit >> 6;
+        Long word = words.get(index);
+        if (word == null) {
+            return this;
+        }
+        long next = word & ~(1L << bit);
+        return new Bitmap(next == 0 ? words.remove(index) : words.put(index, next));
+    }
+
+    Bitmap and(Bitmap other) {
+        if (other.words.size() < words.size()) {
+            return other.and(this);
+        }
+        List<Map.Entry<Long, Long>> result = new ArrayList<>();
+        for (Map.Entry<Long, Long> entry : words) {
+            Long word = other.words.get(entry.getKey());
+            if (word != null && (word & entry.getValue()) != 0) {
+                result.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), word & entry.getValue()));
+            }
+        }
+        return of(result);
+    }
+
+    Bitmap or(Bitmap other) {
+        if (other.isEmpty()) {
+            return this;
+        }
+        if (isEmpty()) {
+            return other;
+        }
+        List<Map.Entry<Long, Long>> result = new ArrayList<>(words.size() + other.words.size());
+        Iterator<Map.Entry<Long, Long>> a = words.iterator();
+        Iterator<Map.Entry<Long, Long>> b = other.words.iterator();
+        Map.Entry<Long, Long> x = a.next();
+        Map.Entry<Long, Long> y = b.next();
+        while (x != null || y != null) {
+            int c = x == null ? 1 : y == null ? -1 : x.getKey().compareTo(y.getKey());
+            if (c < 0) {
+                result.add(x);
+                x = a.hasNext() ? a.next() : null;
+            } else if (c > 0) {
+                result.add(y);
+                y = b.hasNext() ? b.next() : null;
+            } else {
+                result.add(new AbstractMap.SimpleImmutableEntry<>(x.getKey(), x.getValue() | y.getValue()));
+                x = a.hasNext() ? a.next() : null;
+                y = b.hasNext() ? b.next() : null;
+            }
+        }
+        return of(result);
+    }
+
+    @Override
+    public Iterator<Long> iterator() {
+        Iterator<Map.Entry<Long, Long>> it = words.iterator();
+        return new Iterator<Long>() {
+            private long base;
+            private long word;
+
+            @Override
+            public boolean hasNext() {
+                while (word == 0 && it.hasNext()) {
+                    Map.Entry<Long, Long> entry = it.next();
+                    base = entry.getKey() << 6;
+                    word = entry.getValue();
+                }
+                return word != 0;
+            }
+
+            @Override
+            public Long next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                long bit = base + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                return bit;
+            }
+        };
+    }
+}
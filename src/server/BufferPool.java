@@ -0,0 +1,69 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class BufferPool {
+    static final int MIN_SIZE = 4096;
+
+    private final List<Queue<ByteBuffer>> classes;
+    private final AtomicInteger[] sizes;
+    private final int perClass;
+
+    BufferPool(int maxSize, int perClass) {
+        this.perClass = perClass;
+        int n = sizeClass(maxSize) + 1;
+        classes = new ArrayList<>(n);
+        sizes = new AtomicInteger[n];
+        for (int i = 0; i < n; i++) {
+            classes.add(new ConcurrentLinkedQueue<>());
+            sizes[i] = new AtomicInteger();
+        }
+    }
+
+    private static int sizeClass(int size) {
+        int c = 0;
+        while ((MIN_SIZE << c) < size) {
+            c++;
+        }
+        return c;
+    }
+
+    ByteBuffer acquire(int size) {
+        int c = sizeClass(size);
+        if (c >= classes.size()) {
+            return ByteBuffer.allocateDirect(MIN_SIZE << c);
+        }
+        ByteBuffer buffer = classes.get(c).poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(MIN_SIZE << c);
+        }
+        sizes[c].decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    void release(ByteBuffer buffer) {
+        int c = sizeClass(buffer.capacity());
+        if (c >= classes.size() || (MIN_SIZE << c) != buffer.capacity()) {
+            return;
+        }
+        if (sizes[c].incrementAndGet() > perClass) {
+            sizes[c].decrementAndGet();
+            return;
+        }
+        classes.get(c).add(buffer);
+    }
+
+    int pooled() {
+        int total = 0;
+        for (AtomicInteger size : sizes) {
+            total += size.get();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,106 @@
+package server;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Follows the NOTIFY feed from the triggers in init.sql on a dedicated connection and applies
+ * changes made by other servers. Notifications sent by this server's own pool are skipped, since
+ * those writes were already applied locally. After a lost connection everything is reloaded, as
+ * notifications sent while nobody listened are gone.
+ */
+class ChangeListener implements Runnable {
+
+    static final String MARINES_CHANNEL = "marines_changes";
+    static final String USERS_CHANNEL = "users_changes";
+
+    private final DatabaseManager manager;
+    private final ConnectionPool pool;
+    private final String url;
+    private final String user;
+    private final String password;
+
+    private DatabaseConnection connection;
+    private volatile boolean running = true;
+
+    ChangeListener(DatabaseManager manager, ConnectionPool pool, String url, String user, String password) {
+        this.manager = manager;
+        this.pool = pool;
+        this.url = url;
+        this.user = user;
+        this.password = password;
+    }
+
+    /**
+     * Starts listening; called before the initial load so no change slips in between.
+     */
+    void listen() throws SQLException {
+        connection = new DatabaseConnection(url, user, password);
+        try (Statement statement = connection.con.createStatement()) {
+            statement.execute("LISTEN " + MARINES_CHANNEL);
+            statement.execute("LISTEN " + USERS_CHANNEL);
+        }
+    }
+
+    void start() {
+        Thread thread = new Thread(this, "change-listener");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void shutdown() {
+        running = false;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                if (connection == null) {
+                    listen();
+                    manager.reload();
+                }
+                PGNotification[] notifications = ((PGConnection) connection.con).getNotifications(1000);
+                if (notifications != null) {
+                    for (PGNotification notification : notifications) {
+                        apply(notification);
+                    }
+                }
+            } catch (SQLException e) {
+                System.out.println("change feed lost: " + e.getMessage());
+                if (connection != null) {
+                    connection.close();
+                    connection = null;
+                }
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    private void apply(PGNotification notification) throws SQLException {
+        if (pool.ownsBackend(notification.getPID())) {
+            return;
+        }
+        if (notification.getName().equals(MARINES_CHANNEL)) {
+            String[] fields = notification.getParameter().split(",");
+            long key = Long.parseLong(fields[1]);
+            if (fields[0].equals("D")) {
+                manager.remoteMarineRemoved(key, Long.parseLong(fields[2]));
+            } else {
+                manager.remoteMarineChanged(connection, key);
+            }
+        } else if (notification.getName().equals(USERS_CHANNEL)) {
+            manager.remoteUserChanged(connection, notification.getParameter());
+        }
+    }
+}
@@ -1,14 +1,100 @@
 package server;
 
-import java.io.ByteArrayOutputStream;
-import java.io.PrintStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 public class ClientState {
-    int toRead = -1;
-    boolean messageReady = false;
-    boolean success = true;
-    ByteBuffer inBuffer;
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    PrintStream out = new PrintStream(baos);
-}
\ No newline at end of file
+    // past this much unsent output the connection stops being read and scans pause until the client catches up
+    private static final int MAX_PENDING = 256 * 1024;
+    // a client that takes none of its output for this long is not reading at all, and the connection is dropped
+    private static final long STALL_NANOS = TimeUnit.SECONDS.toNanos(Settings.intEnv("LAB7_STALL_SECONDS", 60));
+
+    FrameDecoder decoder;
+    Runnable pending;
+    // requests of one connection run one at a time, in the order they arrived; guarded by this
+    final Deque<Runnable> waiting = new ArrayDeque<>();
+    boolean busy = false;
+    boolean backlogged = false;
+    SelectionKey key;
+    Reactor reactor;
+    volatile Session session;
+    final Queue<ByteBuffer> outQueue = new ConcurrentLinkedQueue<>();
+    private long pendingBytes = 0;
+    private long lastWritten = 0;
+    private Runnable drained;
+    boolean throttled = false;
+
+    /**
+     * Queues a frame without ever waiting, so a slow reader can't hold a request or database thread.
+     * Large responses keep the queue bounded by pausing through {@link #whenDrained}.
+     */
+    void send(ByteBuffer frame) {
+        synchronized (this) {
+            if (!key.isValid()) {
+                return;
+            }
+            if (pendingBytes == 0) {
+                lastWritten = System.nanoTime();
+            }
+            pendingBytes += frame.remaining();
+            outQueue.add(frame);
+            int ops = key.interestOps() | SelectionKey.OP_WRITE;
+            if (pendingBytes >= MAX_PENDING) {
+                throttled = true;
+                ops &= ~SelectionKey.OP_READ;
+            }
+            key.interestOps(ops);
+        }
+        key.selector().wakeup();
+    }
+
+    /**
+     * Accounts for a written frame and returns whether reading should resume.
+     */
+    synchronized boolean sent(ByteBuffer frame) {
+        pendingBytes -= frame.limit();
+        lastWritten = System.nanoTime();
+        if (throttled && pendingBytes < MAX_PENDING / 2) {
+            throttled = false;
+            return true;
+        }
+        return false;
+    }
+
+    synchronized boolean hasRoom() {
+        return pendingBytes < MAX_PENDING;
+    }
+
+    /**
+     * Parks {@code resume} until the queued output drains to half the limit or the connection closes,
+     * and returns true; returns false instead if it has drained already.
+     */
+    synchronized boolean whenDrained(Runnable resume) {
+        if (!key.isValid() || pendingBytes < MAX_PENDING / 2) {
+            return false;
+        }
+        drained = resume;
+        return true;
+    }
+
+    /**
+     * Takes the parked continuation if the output has drained, or unconditionally once the connection is closed.
+     */
+    synchronized Runnable drained() {
+        if (drained == null || (key.isValid() && pendingBytes >= MAX_PENDING / 2)) {
+            return null;
+        }
+        Runnable resume = drained;
+        drained = null;
+        return resume;
+    }
+
+    synchronized boolean stalled(long now) {
+        return pendingBytes > 0 && now - lastWritten > STALL_NANOS;
+    }
+}
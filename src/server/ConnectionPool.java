@@ -0,0 +1,73 @@
+package server;
+
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+class ConnectionPool {
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int size;
+    private final BlockingQueue<DatabaseConnection> idle;
+    private final Set<Integer> backends = ConcurrentHashMap.newKeySet();
+
+    ConnectionPool(String url, String user, String password, int size) throws SQLException {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.size = size;
+        idle = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            DatabaseConnection connection = new DatabaseConnection(url, user, password);
+            backends.add(connection.backendPid);
+            idle.add(connection);
+        }
+    }
+
+    DatabaseConnection take() throws SQLException {
+        DatabaseConnection connection;
+        try {
+            connection = idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for a connection");
+        }
+        if (connection.con.isClosed()) {
+            DatabaseConnection closed = connection;
+            try {
+                connection = new DatabaseConnection(url, user, password);
+            } catch (SQLException e) {
+                idle.add(connection);
+                throw e;
+            }
+            backends.remove(closed.backendPid);
+            backends.add(connection.backendPid);
+        }
+        return connection;
+    }
+
+    void release(DatabaseConnection connection) {
+        if (connection != null) {
+            idle.add(connection);
+        }
+    }
+
+    /**
+     * Whether a server backend process belongs to one of this pool's connections.
+     */
+    boolean ownsBackend(int pid) {
+        return backends.contains(pid);
+    }
+
+    int size() {
+        return size;
+    }
+
+    int idle() {
+        return idle.size();
+    }
+}
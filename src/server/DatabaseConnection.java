@@ -0,0 +1,129 @@
+package server;
+
+import marine.Chapter;
+import org.postgresql.PGConnection;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+class DatabaseConnection {
+
+    private static final String SELECT_MARINES =
+            "SELECT k, id, owner, name, coords[0] AS x, coords[1] AS y, date, health, " +
+            "category::text AS category, weapon::text AS weapon, melee::text AS melee, " +
+            "(chapter).name AS chapter_name, (chapter).world AS chapter_world, version FROM marines ";
+
+    final Connection con;
+    final int backendPid;
+
+    final PreparedStatement insertStatement;
+    final PreparedStatement insertWithIdStatement;
+    final PreparedStatement nextIdsStatement;
+    final PreparedStatement updateStatement;
+    final PreparedStatement removeKeyStatement;
+    final PreparedStatement clearStatement;
+    final PreparedStatement removeLowerStatement;
+    final PreparedStatement removeLowerKeyStatement;
+    final PreparedStatement adduserStatement;
+    final PreparedStatement syncBoundsStatement;
+    final PreparedStatement syncRangeStatement;
+    final PreparedStatement syncUsersStatement;
+    final PreparedStatement changeMarkStatement;
+    final PreparedStatement changedMarinesStatement;
+    final PreparedStatement changedUsersStatement;
+    final PreparedStatement deletedKeysStatement;
+    final PreparedStatement pruneDeletionsStatement;
+    final PreparedStatement touchSnapshotStatement;
+    final PreparedStatement registerSnapshotStatement;
+    final PreparedStatement snapshotMarkStatement;
+    final PreparedStatement expireSnapshotsStatement;
+    final PreparedStatement findKeyStatement;
+    final PreparedStatement findIdStatement;
+    final PreparedStatement scanOwnerStatement;
+    final PreparedStatement scanHealthStatement;
+    final PreparedStatement filterStatement;
+    final PreparedStatement countStatement;
+    final PreparedStatement countByDateStatement;
+    final PreparedStatement findUserStatement;
+
+    DatabaseConnection(String url, String user, String password) throws SQLException {
+        con = DriverManager.getConnection(url, user, password);
+        ((PGConnection) con).addDataType("chapter", Chapter.class);
+        backendPid = ((PGConnection) con).getBackendPID();
+
+        insertStatement = con.prepareStatement(
+                "INSERT INTO marines (k, owner, name, coords, date, health, category, weapon, melee, chapter) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?) ON CONFLICT (k) DO NOTHING RETURNING id");
+        insertWithIdStatement = con.prepareStatement(
+                "INSERT INTO marines (k, id, owner, name, coords, date, health, category, weapon, melee, chapter) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) ON CONFLICT (k) DO NOTHING");
+        nextIdsStatement = con.prepareStatement(
+                "SELECT nextval('marines_id_seq') FROM generate_series(1, ?)");
+        updateStatement = con.prepareStatement(
+                "UPDATE marines SET name = ?, coords = ?, health = ?, category = ?, weapon = ?, melee = ?, chapter = ?, " +
+                        "version = version + 1 WHERE k = ? AND version = ?");
+        removeKeyStatement = con.prepareStatement(
+                "DELETE FROM marines WHERE k = ? AND version = ?");
+        clearStatement = con.prepareStatement(
+                "DELETE FROM marines WHERE owner = ? RETURNING k, id");
+        removeLowerStatement = con.prepareStatement(
+                "DELETE FROM marines WHERE health < ? AND owner = ? RETURNING k, id");
+        removeLowerKeyStatement = con.prepareStatement(
+                "DELETE FROM marines WHERE k < ? AND owner = ? RETURNING k, id");
+        adduserStatement = con.prepareStatement(
+                "INSERT INTO users (name, hash) VALUES (?, ?)");
+        syncBoundsStatement = con.prepareStatement(
+                "SELECT max(k) AS upper, count(*) AS n FROM " +
+                        "(SELECT k, ntile(?) OVER (ORDER BY k) AS part FROM marines) parts " +
+                        "GROUP BY part ORDER BY upper");
+        syncRangeStatement = con.prepareStatement(
+                SELECT_MARINES + "WHERE k >= ? AND k <= ? ORDER BY k");
+        changedMarinesStatement = con.prepareStatement(
+                SELECT_MARINES + "WHERE seq > ?");
+        syncUsersStatement = con.prepareStatement(
+                "SELECT name, hash from users");
+        changeMarkStatement = con.prepareStatement(
+                "SELECT CASE WHEN is_called THEN last_value ELSE last_value - 1 END FROM marines_change_seq");
+        changedUsersStatement = con.prepareStatement(
+                "SELECT name, hash FROM users WHERE seq > ?");
+        deletedKeysStatement = con.prepareStatement(
+                "SELECT k FROM marine_deletions WHERE seq > ?");
+        pruneDeletionsStatement = con.prepareStatement(
+                "DELETE FROM marine_deletions WHERE seq <= (SELECT min(mark) FROM snapshot_marks)");
+        touchSnapshotStatement = con.prepareStatement(
+                "UPDATE snapshot_marks SET updated = now() WHERE node = ?");
+        registerSnapshotStatement = con.prepareStatement(
+                "INSERT INTO snapshot_marks (node, mark) VALUES (?, 0) ON CONFLICT (node) DO UPDATE SET mark = 0, updated = now()");
+        snapshotMarkStatement = con.prepareStatement(
+                "UPDATE snapshot_marks SET mark = ?, updated = now() WHERE node = ?");
+        expireSnapshotsStatement = con.prepareStatement(
+                "DELETE FROM snapshot_marks WHERE updated < now() - make_interval(secs => ?)");
+        findKeyStatement = con.prepareStatement(
+                SELECT_MARINES + "WHERE k = ?");
+        findIdStatement = con.prepareStatement(
+                SELECT_MARINES + "WHERE id = ?");
+        scanOwnerStatement = con.prepareStatement(
+                SELECT_MARINES + "WHERE owner = ? ORDER BY k");
+        scanHealthStatement = con.prepareStatement(
+                SELECT_MARINES + "ORDER BY health, k");
+        filterStatement = con.prepareStatement(
+                SELECT_MARINES + "WHERE (?::cat IS NULL OR category > ?::cat) " +
+                        "AND (?::weapon IS NULL OR weapon = ?::weapon) " +
+                        "AND (?::melee IS NULL OR melee = ?::melee) ORDER BY id");
+        countStatement = con.prepareStatement(
+                "SELECT count(*) AS n, max(date) AS newest FROM marines");
+        countByDateStatement = con.prepareStatement(
+                "SELECT date, count(*) AS n FROM marines GROUP BY date ORDER BY date");
+        findUserStatement = con.prepareStatement(
+                "SELECT name, hash FROM users WHERE name = ?");
+    }
+
+    void close() {
+        try {
+            con.close();
+        } catch (SQLException ignored) {
+        }
+    }
+}
@@ -1,34 +1,59 @@
 package server;
 
 import marine.*;
-import org.postgresql.PGConnection;
 import org.postgresql.geometric.PGpoint;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Paths;
 import java.sql.Date;
 import java.sql.*;
 import java.time.LocalDate;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.stream.Collectors;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.*;
 
 public class DatabaseManager {
 
-    private Map<String, String> users;
-    private Map<Long, SpaceMarine> marines;
-    Connection con;
+    private volatile Map<String, String> users;
+    private final MarineStore marines = new MarineStore();
 
+    private final ConnectionPool pool;
+    private final GroupCommitter committer;
+    private final SnapshotFile snapshotFile;
+    // who the snapshot's mark belongs to in snapshot_marks, and how long a mark lasts without being refreshed
+    private final String snapshotNode;
+    private final int snapshotMarkTtl;
+    private final ScheduledExecutorService snapshotTimer;
+    // writers hold the read side until their answer completes, on whichever thread that is; taking a
+    // snapshot holds the write side so the change mark matches memory
+    private final StampedLock writes = new StampedLock();
+    // runs the blocking JDBC calls, one thread per pooled connection, so request threads never wait on them
+    private final ExecutorService database;
+    // new work admitted to the database threads, running or queued; resumed scans don't count
+    private final AtomicInteger databaseAdmitted = new AtomicInteger();
+    private final AtomicLong databaseRejected = new AtomicLong();
+    private final int databaseLimit;
+    // set in partial-cache mode, where marines are read from the database and only hot ones are kept
+    private final MarineCache cache;
+    private final ChangeListener listener;
+    // set in sharded mode: the keys this node is responsible for
+    private final LongPredicate owns;
+    private final int fetchSize = Settings.intEnv("LAB7_SYNC_FETCH", 1000);
+    // set on a primary that ships its changes to read replicas
+    private final ReplicationLog log;
+    private final ReplicationServer replication;
+    // set on a read replica, which has no database connections and follows a primary instead
+    private final Replica replica;
 
-    private final PreparedStatement insertStatement;
-    private final PreparedStatement updateStatement;
-    private final PreparedStatement removeKeyStatement;
-    private final PreparedStatement clearStatement;
-    private final PreparedStatement removeLowerStatement;
-    private final PreparedStatement removeLowerKeyStatement;
-    private final PreparedStatement adduserStatement;
-    private final PreparedStatement syncMarinesStatement;
-    private final PreparedStatement syncUsersStatement;
-
-    private final ReentrantLock lock;
+    private interface Query {
+        ResultSet run(DatabaseConnection c) throws SQLException;
+    }
 
     private boolean isCurrentUsers(String currentUser, SpaceMarine marine) {
         return marine.getOwner().equals(currentUser);
@@ -39,288 +64,1231 @@ public class DatabaseManager {
         return users.containsKey(currentUser);
     }
 
-    public boolean validCreds (String currentUser, String passHash) {
-        return haveUser(currentUser) && users.get(currentUser).equals(passHash);
-    }
-
-    public DatabaseManager(String url, String user, String password) throws SQLException {
-        lock = new ReentrantLock();
-        con = DriverManager.getConnection(url, user, password);
-        ((PGConnection) con).addDataType("chapter", Chapter.class);
-
-        insertStatement = con.prepareStatement(
-                "INSERT INTO marines (k, owner, name, coords, date, health, category, weapon, melee, chapter) " +
-                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?) RETURNING id");
-        updateStatement = con.prepareStatement(
-                "UPDATE marines SET name = ?, coords = ?, health = ?, category = ?, weapon = ?, melee = ?, chapter = ?" +
-                        "WHERE k = ?");
-        removeKeyStatement = con.prepareStatement(
-                "DELETE FROM marines WHERE k = ?");
-        clearStatement = con.prepareStatement(
-                "DELETE FROM marines WHERE owner = ?");
-        removeLowerStatement = con.prepareStatement(
-                "DELETE FROM marines WHERE health < ? AND owner = ?");
-        removeLowerKeyStatement = con.prepareStatement(
-                "DELETE FROM marines WHERE k < ? AND owner = ?");
-        adduserStatement = con.prepareStatement(
-                "INSERT INTO users (name, hash) VALUES (?, ?)");
-        syncMarinesStatement = con.prepareStatement(
-                "SELECT k, id, owner, name, coords, date, health, category, weapon, melee, chapter FROM marines"
-        );
-        syncUsersStatement = con.prepareStatement(
-                "SELECT name, hash from users");
+    public CompletableFuture<Boolean> validCreds(String currentUser, String passHash) {
+        if (!haveUser(currentUser) && owns != null) {
+            return onDatabase(() -> {
+                refreshUser(currentUser);
+                return knownCreds(currentUser, passHash);
+            });
+        }
+        return done(knownCreds(currentUser, passHash));
+    }
+
+    private boolean knownCreds(String currentUser, String passHash) {
+        String hash = users.get(currentUser);
+        return hash != null && hash.equals(passHash);
+    }
+
+    // users registered through another shard only exist in the shared table
+    private void refreshUser(String name) {
+        DatabaseConnection c = null;
+        try {
+            c = pool.take();
+            c.findUserStatement.setString(1, name);
+            storeUsers(c.findUserStatement.executeQuery());
+        } catch (SQLException ignored) {
+        } finally {
+            pool.release(c);
+        }
+    }
+
+    public DatabaseManager(String url, String user, String password, int poolSize, LongPredicate owns) throws SQLException {
+        this.owns = owns;
+        pool = new ConnectionPool(url, user, password, poolSize);
+        AtomicInteger databaseThreads = new AtomicInteger();
+        database = Executors.newFixedThreadPool(poolSize, r -> {
+            Thread thread = new Thread(r, "database-" + databaseThreads.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        databaseLimit = poolSize + Math.max(1, Settings.intEnv("LAB7_DB_QUEUE", poolSize * 64));
+        if (Settings.intEnv("LAB7_GROUP_COMMIT", 0) != 0) {
+            committer = new GroupCommitter(pool,
+                    Settings.intEnv("LAB7_GROUP_WINDOW_MS", 5),
+                    Settings.intEnv("LAB7_GROUP_MAX", 256));
+        } else {
+            committer = null;
+        }
+        int cacheKb = Settings.intEnv("LAB7_CACHE_KB", 0);
+        if (cacheKb > 0 && owns != null) {
+            System.out.println("partial cache mode is not available with sharding, keeping marines in memory");
+            cacheKb = 0;
+        }
+        cache = cacheKb > 0 ? new MarineCache(cacheKb * 1024L) : null;
+        if (Settings.intEnv("LAB7_LISTEN", 0) != 0) {
+            listener = new ChangeListener(this, pool, url, user, password);
+            listener.listen();
+        } else {
+            listener = null;
+        }
+        String snapshotPath = Settings.stringEnv("LAB7_SNAPSHOT", null);
+        // with other writers around the change mark can't be matched to memory exactly
+        snapshotFile = snapshotPath == null || cache != null || listener != null
+                ? null : new SnapshotFile(Paths.get(snapshotPath));
+        int snapshotInterval = Math.max(1, Settings.intEnv("LAB7_SNAPSHOT_INTERVAL", 300));
+        snapshotNode = snapshotFile == null ? null : Settings.stringEnv("LAB7_NODE_ID", hostName() + ":" + snapshotFile);
+        snapshotMarkTtl = Math.max(3 * snapshotInterval, Settings.intEnv("LAB7_SNAPSHOT_MARK_TTL", 24 * 60 * 60));
+        int replicationPort = Settings.intEnv("LAB7_REPLICATION_PORT", 0);
+        if (replicationPort > 0 && cache != null) {
+            System.out.println("replication is not available in partial cache mode");
+            replicationPort = 0;
+        }
+        String replicationSecret = Settings.stringEnv("LAB7_REPLICATION_SECRET", null);
+        if (replicationPort > 0 && replicationSecret == null) {
+            System.out.println("replication needs LAB7_REPLICATION_SECRET, not shipping changes");
+            replicationPort = 0;
+        }
+        log = replicationPort > 0 ? new ReplicationLog(Settings.intEnv("LAB7_REPLICATION_LOG", 100000)) : null;
+        replica = null;
 
         sync();
+        if (listener != null) {
+            listener.start();
+        }
+        if (log != null) {
+            String bind = Settings.stringEnv("LAB7_REPLICATION_BIND", "127.0.0.1");
+            try {
+                replication = new ReplicationServer(this, log, new InetSocketAddress(bind, replicationPort),
+                        replicationSecret);
+            } catch (IOException e) {
+                throw new SQLException("can't listen for replicas on " + bind + ":" + replicationPort, e);
+            }
+            replication.start();
+            System.out.println("shipping changes to replicas on " + bind + ":" + replicationPort);
+        } else {
+            replication = null;
+        }
+
+        if (snapshotFile != null) {
+            snapshotTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshotTimer.scheduleWithFixedDelay(this::saveSnapshot, snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+        } else {
+            snapshotTimer = null;
+        }
+    }
+
+    /**
+     * Starts a read replica of the primary at {@code primary} (host:port), returning once the
+     * first snapshot from it has been applied.
+     */
+    public DatabaseManager(String primary, String secret) throws InterruptedException {
+        owns = null;
+        pool = null;
+        database = null;
+        databaseLimit = 0;
+        committer = null;
+        cache = null;
+        listener = null;
+        snapshotFile = null;
+        snapshotNode = null;
+        snapshotMarkTtl = 0;
+        snapshotTimer = null;
+        log = null;
+        replication = null;
+        users = new ConcurrentHashMap<>();
+        replica = new Replica(this, primary, secret);
+        replica.start();
+        System.out.println("waiting for a snapshot from " + replica);
+        replica.awaitReady();
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+
+    void shutdown() {
+        if (replica != null) {
+            replica.shutdown();
+        }
+        if (replication != null) {
+            replication.shutdown();
+        }
+        if (listener != null) {
+            listener.shutdown();
+        }
+        if (snapshotTimer != null) {
+            snapshotTimer.shutdownNow();
+            saveSnapshot();
+        }
+        if (database != null) {
+            database.shutdown();
+        }
+    }
+
+    int poolSize() {
+        return pool == null ? 0 : pool.size();
+    }
+
+    int idleConnections() {
+        return pool == null ? 0 : pool.idle();
+    }
+
+    int queuedDatabaseTasks() {
+        return database == null ? 0 : ((ThreadPoolExecutor) database).getQueue().size();
+    }
+
+    long rejectedDatabaseTasks() {
+        return databaseRejected.get();
+    }
+
+    GroupCommitter committer() {
+        return committer;
+    }
+
+    MarineCache cache() {
+        return cache;
+    }
+
+    ReplicationServer replication() {
+        return replication;
+    }
+
+    Replica replica() {
+        return replica;
     }
 
     private SpaceMarine extractMarine(ResultSet set) throws SQLException {
         Long id = set.getLong("id");
         String owner = set.getString("owner");
         String name = set.getString("name");
-        PGpoint sqlPoint = (PGpoint) set.getObject("coords");
-        Coordinates coords = new Coordinates(sqlPoint.x, sqlPoint.y);
-        java.sql.Date sqlDate = set.getDate("date");
-        LocalDate date = sqlDate.toLocalDate();
+        Coordinates coords = new Coordinates(set.getDouble("x"), set.getDouble("y"));
+        LocalDate date = set.getDate("date").toLocalDate();
         float health = set.getFloat("health");
         String catString = set.getString("category");
         AstartesCategory category = catString == null ? null : AstartesCategory.valueOf(catString);
         Weapon weapon = Weapon.valueOf(set.getString("weapon"));
         MeleeWeapon meleeWeapon = MeleeWeapon.valueOf(set.getString("melee"));
-        Chapter chapter = (Chapter) set.getObject("chapter");
-        return new SpaceMarine(id, name, coords, date, health, category, weapon, meleeWeapon, chapter, owner);
+        String chapterName = set.getString("chapter_name");
+        Chapter chapter = chapterName == null ? null : new Chapter(chapterName, set.getString("chapter_world"));
+        SpaceMarine marine = new SpaceMarine(id, name, coords, date, health, category, weapon, meleeWeapon, chapter, owner);
+        marine.setVersion(set.getLong("version"));
+        return marine;
     }
 
     private void sync() throws SQLException {
-        users = new HashMap<>();
-        marines = new HashMap<>();
-        ResultSet marineResults = syncMarinesStatement.executeQuery();
-        while (marineResults.next()) {
-            Long key = marineResults.getLong("k");
-            SpaceMarine marine = extractMarine(marineResults);
-            marines.put(key, marine);
-        }
-        ResultSet userResults = syncUsersStatement.executeQuery();
+        if (cache != null) {
+            reloadUsers();
+            System.out.println("partial cache mode, " + cache.maxWeight() / 1024 + " KiB for marines");
+            return;
+        }
+        SnapshotFile.Contents saved = null;
+        if (snapshotFile != null && registerSnapshot()) {
+            try {
+                saved = snapshotFile.read();
+            } catch (IOException e) {
+                System.out.println("can't read snapshot " + snapshotFile + ", loading from the database");
+            }
+        }
+        if (saved != null) {
+            restore(saved);
+        } else {
+            load();
+        }
+    }
+
+    private void restore(SnapshotFile.Contents saved) throws SQLException {
+        long start = System.nanoTime();
+        users = new ConcurrentHashMap<>(saved.users);
+        marines.resetSorted(saved.marines);
+        int changed = 0;
+        int deleted = 0;
+        DatabaseConnection c = pool.take();
+        try {
+            c.deletedKeysStatement.setLong(1, saved.mark);
+            ResultSet deletions = c.deletedKeysStatement.executeQuery();
+            while (deletions.next()) {
+                marines.remove(deletions.getLong("k"));
+                deleted++;
+            }
+            c.changedMarinesStatement.setLong(1, saved.mark);
+            ResultSet changes = c.changedMarinesStatement.executeQuery();
+            while (changes.next()) {
+                long key = changes.getLong("k");
+                if (owns == null || owns.test(key)) {
+                    marines.put(key, extractMarine(changes));
+                    changed++;
+                }
+            }
+            c.changedUsersStatement.setLong(1, saved.mark);
+            loadUsers(c.changedUsersStatement.executeQuery(), users);
+        } finally {
+            pool.release(c);
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        System.out.println("restored " + saved.marines.size() + " marines from " + snapshotFile + ", applied "
+                + changed + " changes and " + deleted + " deletions in " + millis + " ms");
+    }
+
+    /**
+     * Records this node's snapshot in the database before its first mark is read, so deletions after
+     * that mark are logged; deletions are only logged while some snapshot is registered. Returns false
+     * if the node had no current mark, because then deletions since the file was written may already
+     * have been pruned and the file can't be trusted.
+     */
+    private boolean registerSnapshot() throws SQLException {
+        DatabaseConnection c = pool.take();
+        try {
+            c.touchSnapshotStatement.setString(1, snapshotNode);
+            if (c.touchSnapshotStatement.executeUpdate() > 0) {
+                return true;
+            }
+            c.registerSnapshotStatement.setString(1, snapshotNode);
+            c.registerSnapshotStatement.execute();
+            return false;
+        } finally {
+            pool.release(c);
+        }
+    }
+
+    /**
+     * Writes the snapshot file, then drops deletion log entries that every registered snapshot covers.
+     */
+    void saveSnapshot() {
+        if (snapshotFile == null) {
+            return;
+        }
+        DatabaseConnection c = null;
+        try {
+            long mark;
+            MarineStore.Snapshot snapshot;
+            Map<String, String> userCopy;
+            // writers need a connection to finish, so let them drain before taking one
+            long stamp = writes.writeLock();
+            try {
+                c = pool.take();
+                ResultSet rs = c.changeMarkStatement.executeQuery();
+                rs.next();
+                mark = rs.getLong(1);
+                snapshot = marines.snapshot();
+                userCopy = new HashMap<>(users);
+            } finally {
+                pool.release(c);
+                c = null;
+                writes.unlockWrite(stamp);
+            }
+            snapshotFile.write(mark, userCopy, snapshot);
+            c = pool.take();
+            c.snapshotMarkStatement.setLong(1, mark);
+            c.snapshotMarkStatement.setString(2, snapshotNode);
+            c.snapshotMarkStatement.execute();
+            // nodes that stopped saving snapshots must not hold the deletion log back forever
+            c.expireSnapshotsStatement.setInt(1, snapshotMarkTtl);
+            c.expireSnapshotsStatement.execute();
+            c.pruneDeletionsStatement.execute();
+        } catch (SQLException | IOException e) {
+            System.out.println("snapshot failed: " + e.getMessage());
+        } finally {
+            pool.release(c);
+        }
+    }
+
+    private void load() throws SQLException {
+        Map<String, String> loadedUsers = new ConcurrentHashMap<>();
+        long start = System.nanoTime();
+        List<long[]> ranges = new ArrayList<>();
+        DatabaseConnection c = pool.take();
+        try {
+            c.syncBoundsStatement.setInt(1, Math.max(1, Settings.intEnv("LAB7_SYNC_PARTS", pool.size())));
+            ResultSet bounds = c.syncBoundsStatement.executeQuery();
+            long from = Long.MIN_VALUE;
+            while (bounds.next()) {
+                long upper = bounds.getLong("upper");
+                ranges.add(new long[]{from, upper, bounds.getLong("n")});
+                from = upper + 1;
+            }
+            loadUsers(c.syncUsersStatement.executeQuery(), loadedUsers);
+        } finally {
+            pool.release(c);
+        }
+        users = loadedUsers;
+
+        ExecutorService loaders = Executors.newFixedThreadPool(Math.max(1, Math.min(ranges.size(), pool.size())));
+        int total = 0;
+        try {
+            List<Future<List<Map.Entry<Long, SpaceMarine>>>> parts = new ArrayList<>(ranges.size());
+            for (long[] range : ranges) {
+                total += (int) range[2];
+                parts.add(loaders.submit(() -> loadRange(range[0], range[1], (int) range[2])));
+            }
+            List<Map.Entry<Long, SpaceMarine>> loaded = new ArrayList<>(total);
+            for (Future<List<Map.Entry<Long, SpaceMarine>>> part : parts) {
+                loaded.addAll(part.get());
+            }
+            marines.resetSorted(loaded);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while loading marines");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException(e.getCause());
+        } finally {
+            loaders.shutdownNow();
+        }
+        long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+        System.out.println("loaded " + total + " marines in " + ranges.size() + " ranges in " + millis
+                + " ms (" + total * 1000L / millis + " rows/s)");
+    }
+
+    private void loadUsers(ResultSet userResults, Map<String, String> into) throws SQLException {
         while (userResults.next()) {
             String user = userResults.getString("name");
             String passHash = userResults.getString("hash");
-            users.put(user, passHash);
+            into.put(user, passHash);
+        }
+    }
+
+    private void storeUsers(ResultSet userResults) throws SQLException {
+        while (userResults.next()) {
+            userStored(userResults.getString("name"), userResults.getString("hash"));
+        }
+    }
+
+    private void reloadUsers() throws SQLException {
+        Map<String, String> loadedUsers = new ConcurrentHashMap<>();
+        DatabaseConnection c = pool.take();
+        try {
+            loadUsers(c.syncUsersStatement.executeQuery(), loadedUsers);
+        } finally {
+            pool.release(c);
+        }
+        users = loadedUsers;
+    }
+
+    /**
+     * Brings memory back in line with the tables after change notifications may have been missed. Local
+     * writes are held off meanwhile: this server's own notifications are filtered out, so a write that
+     * landed while the tables were being read would otherwise be overwritten with the older row for good.
+     */
+    void reload() throws SQLException {
+        long stamp = writes.writeLock();
+        try {
+            if (cache != null) {
+                reloadUsers();
+                cache.invalidateIf((k, m) -> true);
+            } else if (log != null) {
+                synchronized (log) {
+                    load();
+                    log.reset();
+                }
+            } else {
+                load();
+            }
+        } finally {
+            writes.unlockWrite(stamp);
+        }
+    }
+
+    void remoteMarineChanged(DatabaseConnection c, long key) throws SQLException {
+        if (owns != null && !owns.test(key)) {
+            return;
+        }
+        if (cache != null) {
+            cache.invalidate(key);
+            return;
+        }
+        c.findKeyStatement.setLong(1, key);
+        ResultSet set = c.findKeyStatement.executeQuery();
+        if (set.next()) {
+            stored(key, extractMarine(set));
+        } else {
+            removed(key);
+        }
+    }
+
+    void remoteMarineRemoved(long key, long id) {
+        removedRow(key, id);
+    }
+
+    void remoteUserChanged(DatabaseConnection c, String name) throws SQLException {
+        c.findUserStatement.setString(1, name);
+        storeUsers(c.findUserStatement.executeQuery());
+    }
+
+    private List<Map.Entry<Long, SpaceMarine>> loadRange(long from, long to, int expected) throws SQLException {
+        List<Map.Entry<Long, SpaceMarine>> rows = new ArrayList<>(expected);
+        DatabaseConnection c = pool.take();
+        try {
+            c.con.setAutoCommit(false);
+            c.syncRangeStatement.setFetchSize(fetchSize);
+            c.syncRangeStatement.setLong(1, from);
+            c.syncRangeStatement.setLong(2, to);
+            try (ResultSet set = c.syncRangeStatement.executeQuery()) {
+                while (set.next()) {
+                    long key = set.getLong("k");
+                    if (owns == null || owns.test(key)) {
+                        rows.add(new AbstractMap.SimpleImmutableEntry<>(key, extractMarine(set)));
+                    }
+                }
+            }
+            c.con.commit();
+            return rows;
+        } catch (SQLException e) {
+            c.con.rollback();
+            throw e;
+        } finally {
+            c.con.setAutoCommit(true);
+            pool.release(c);
         }
     }
 
-    public ManagerAnswer addUser(String currentUser, String passHash) {
+    public CompletableFuture<ManagerAnswer> addUser(String currentUser, String passHash) {
+        return write(false, () -> done(addUserNow(currentUser, passHash)));
+    }
+
+    private ManagerAnswer addUserNow(String currentUser, String passHash) {
         if (users.containsKey(currentUser)) {
             return ManagerAnswer.BAD_OP;
         }
-        lock.lock();
+        DatabaseConnection c = null;
         try {
-            adduserStatement.setString(1, currentUser);
-            adduserStatement.setString(2, passHash);
+            c = pool.take();
+            c.adduserStatement.setString(1, currentUser);
+            c.adduserStatement.setString(2, passHash);
 
-            adduserStatement.execute();
+            c.adduserStatement.execute();
 
-            users.put(currentUser, passHash);
+            userStored(currentUser, passHash);
             return ManagerAnswer.OK;
         } catch (SQLException throwables) {
             return ManagerAnswer.DB_ERROR;
         } finally {
-            lock.unlock();
+            pool.release(c);
         }
     }
 
-    public MarineInfo info() {
-        String type = "HashMap<Long, SpaceMarine>";
-        int n = marines.size();
-        LocalDate date = marines.values()
-                .stream().map(SpaceMarine::getCreationDate).max(Comparator.naturalOrder()).orElse(null);
-        return new MarineInfo(type, n, date);
+    public CompletableFuture<MarineInfo> info() {
+        if (cache != null) {
+            return onDatabase(() -> {
+                DatabaseConnection c = null;
+                try {
+                    c = pool.take();
+                    ResultSet rs = c.countStatement.executeQuery();
+                    rs.next();
+                    Date newest = rs.getDate("newest");
+                    return new MarineInfo("PostgreSQL table with a W-TinyLFU cache", rs.getInt("n"),
+                            newest == null ? null : newest.toLocalDate());
+                } catch (SQLException throwables) {
+                    return null;
+                } finally {
+                    pool.release(c);
+                }
+            });
+        }
+        String type = "PersistentTreeMap<Long, SpaceMarine>";
+        MarineStore.Snapshot snapshot = marines.snapshot();
+        int n = snapshot.size();
+        return CompletableFuture.completedFuture(new MarineInfo(type, n, snapshot.newestDate()));
     }
 
-    public ManagerAnswer insert(String currentUser, Long key, SpaceMarine marine) {
-        if (marines.containsKey(key)) {
-            return ManagerAnswer.BAD_OP;
+    private SpaceMarine lookup(Long key) throws SQLException {
+        if (cache == null) {
+            return marines.get(key);
+        }
+        SpaceMarine cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        DatabaseConnection c = null;
+        try {
+            c = pool.take();
+            c.findKeyStatement.setLong(1, key);
+            ResultSet set = c.findKeyStatement.executeQuery();
+            if (!set.next()) {
+                return null;
+            }
+            SpaceMarine marine = extractMarine(set);
+            cache.put(key, marine);
+            return marine;
+        } finally {
+            pool.release(c);
+        }
+    }
+
+    private Map.Entry<Long, SpaceMarine> lookupId(Long id) throws SQLException {
+        if (cache == null) {
+            MarineStore.Snapshot snapshot = marines.snapshot();
+            Long key = snapshot.keyById(id);
+            return key == null ? null : new AbstractMap.SimpleImmutableEntry<>(key, snapshot.get(key));
+        }
+        Long key = cache.keyById(id);
+        SpaceMarine cached = key == null ? null : cache.get(key);
+        if (cached != null) {
+            return new AbstractMap.SimpleImmutableEntry<>(key, cached);
+        }
+        DatabaseConnection c = null;
+        try {
+            c = pool.take();
+            c.findIdStatement.setLong(1, id);
+            ResultSet set = c.findIdStatement.executeQuery();
+            if (!set.next()) {
+                return null;
+            }
+            key = set.getLong("k");
+            SpaceMarine marine = extractMarine(set);
+            cache.put(key, marine);
+            return new AbstractMap.SimpleImmutableEntry<>(key, marine);
+        } finally {
+            pool.release(c);
+        }
+    }
+
+    // with a replication log, applying a change and logging it happen under the log's lock so the
+    // log order is the order the store saw
+    private void stored(Long key, SpaceMarine marine) {
+        if (cache != null) {
+            cache.put(key, marine);
+        } else if (log != null) {
+            synchronized (log) {
+                if (marines.putIfNewer(key, marine)) {
+                    log.put(key, marine);
+                }
+            }
+        } else {
+            marines.putIfNewer(key, marine);
+        }
+    }
+
+    private void removed(Long key) {
+        if (cache != null) {
+            cache.invalidate(key);
+        } else if (log != null) {
+            synchronized (log) {
+                marines.remove(key);
+                log.remove(key);
+            }
+        } else {
+            marines.remove(key);
+        }
+    }
+
+    // the version a write expected is gone, so whatever the cache holds for the key is stale
+    private ManagerAnswer conflict(Long key) {
+        if (cache != null) {
+            cache.invalidate(key);
+        }
+        return ManagerAnswer.CONFLICT;
+    }
+
+    // a deleted row leaves memory only if the entry is still that row and not one inserted since
+    private void removedRow(Long key, Long id) {
+        removedRows(Collections.singletonMap(key, id));
+    }
+
+    private void removedRows(Map<Long, Long> rows) {
+        if (cache != null) {
+            rows.keySet().forEach(cache::invalidate);
+            return;
+        }
+        Function<MarineStore.Snapshot, Iterable<Map.Entry<Long, SpaceMarine>>> candidates = s -> {
+            List<Map.Entry<Long, SpaceMarine>> present = new ArrayList<>(rows.size());
+            for (Long key : rows.keySet()) {
+                SpaceMarine marine = s.get(key);
+                if (marine != null) {
+                    present.add(new AbstractMap.SimpleImmutableEntry<>(key, marine));
+                }
+            }
+            return present;
+        };
+        BiPredicate<Long, SpaceMarine> sameRow = (k, m) -> rows.get(k).equals(m.getId());
+        if (log != null) {
+            synchronized (log) {
+                for (Long key : marines.removeIf(candidates, sameRow)) {
+                    log.remove(key);
+                }
+            }
+        } else {
+            marines.removeIf(candidates, sameRow);
+        }
+    }
+
+    private static Map<Long, Long> deletedRows(ResultSet rs) throws SQLException {
+        Map<Long, Long> rows = new HashMap<>();
+        while (rs.next()) {
+            rows.put(rs.getLong("k"), rs.getLong("id"));
+        }
+        return rows;
+    }
+
+    private void userStored(String name, String passHash) {
+        if (log != null) {
+            synchronized (log) {
+                users.put(name, passHash);
+                log.user(name, passHash);
+            }
+        } else {
+            users.put(name, passHash);
+        }
+    }
+
+    ReplicationLog.Capture replicationCapture() {
+        synchronized (log) {
+            return new ReplicationLog.Capture(log.head(), new HashMap<>(users), marines.snapshot());
+        }
+    }
+
+    void replicaPut(long key, SpaceMarine marine) {
+        marines.put(key, marine);
+    }
+
+    void replicaRemove(long key) {
+        marines.remove(key);
+    }
+
+    void replicaUser(String name, String passHash) {
+        users.put(name, passHash);
+    }
+
+    void replicaReset(Map<String, String> replicatedUsers, List<Map.Entry<Long, SpaceMarine>> replicatedMarines) {
+        users = new ConcurrentHashMap<>(replicatedUsers);
+        marines.resetSorted(replicatedMarines);
+    }
+
+    private interface Cursor {
+        /**
+         * Returns the next entry, or null at the end.
+         */
+        Map.Entry<Long, SpaceMarine> next() throws SQLException;
+
+        void close();
+    }
+
+    /**
+     * Feeds a cursor to a sink while the sink has room, parking in between. Each resumed window runs on
+     * {@code executor}, or right where the sink wakes it when that is null, which is fine for cursors that
+     * never block.
+     */
+    private static final class Pump implements Runnable {
+        private final Cursor cursor;
+        private final MarineSink sink;
+        private final Executor executor;
+        final CompletableFuture<ManagerAnswer> answer = new CompletableFuture<>();
+
+        Pump(Cursor cursor, MarineSink sink, Executor executor) {
+            this.cursor = cursor;
+            this.sink = sink;
+            this.executor = executor;
+        }
+
+        @Override
+        public void run() {
+            try {
+                do {
+                    while (!sink.closed() && sink.hasRoom()) {
+                        Map.Entry<Long, SpaceMarine> entry = cursor.next();
+                        if (entry == null) {
+                            finish(ManagerAnswer.OK);
+                            return;
+                        }
+                        sink.accept(entry);
+                    }
+                    if (sink.closed()) {
+                        finish(ManagerAnswer.OK);
+                        return;
+                    }
+                } while (!sink.whenReady(this::resume));
+            } catch (SQLException e) {
+                finish(ManagerAnswer.DB_ERROR);
+            } catch (RuntimeException e) {
+                cursor.close();
+                answer.completeExceptionally(e);
+            }
+        }
+
+        private void resume() {
+            if (executor == null) {
+                run();
+                return;
+            }
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                finish(ManagerAnswer.DB_ERROR);
+            }
+        }
+
+        private void finish(ManagerAnswer result) {
+            cursor.close();
+            answer.complete(result);
+        }
+    }
+
+    private static CompletableFuture<ManagerAnswer> scan(Iterable<Map.Entry<Long, SpaceMarine>> entries,
+                                                         MarineSink sink) {
+        Iterator<Map.Entry<Long, SpaceMarine>> it = entries.iterator();
+        Pump pump = new Pump(new Cursor() {
+            @Override
+            public Map.Entry<Long, SpaceMarine> next() {
+                return it.hasNext() ? it.next() : null;
+            }
+
+            @Override
+            public void close() {
+            }
+        }, sink, null);
+        pump.run();
+        return pump.answer;
+    }
+
+    /**
+     * Streams query results through a cursor so a scan never holds more than one fetch in memory. While
+     * the client catches up the cursor keeps its connection but not a database thread.
+     */
+    private CompletableFuture<ManagerAnswer> stream(Query query, MarineSink sink) {
+        return onDatabase(() -> {
+            DatabaseConnection c = null;
+            try {
+                c = pool.take();
+                c.con.setAutoCommit(false);
+                Pump pump = new Pump(new ResultCursor(c, query.run(c)), sink, database);
+                c = null;
+                pump.run();
+                return pump.answer;
+            } catch (SQLException throwables) {
+                if (c != null) {
+                    endScan(c);
+                }
+                return done(ManagerAnswer.DB_ERROR);
+            }
+        }).thenCompose(answer -> answer);
+    }
+
+    private final class ResultCursor implements Cursor {
+        private final DatabaseConnection c;
+        private final ResultSet set;
+
+        ResultCursor(DatabaseConnection c, ResultSet set) {
+            this.c = c;
+            this.set = set;
+        }
+
+        @Override
+        public Map.Entry<Long, SpaceMarine> next() throws SQLException {
+            if (!set.next()) {
+                return null;
+            }
+            return new AbstractMap.SimpleImmutableEntry<>(set.getLong("k"), extractMarine(set));
+        }
+
+        @Override
+        public void close() {
+            try {
+                set.close();
+            } catch (SQLException ignored) {
+            }
+            endScan(c);
+        }
+    }
+
+    private void endScan(DatabaseConnection c) {
+        try {
+            c.con.rollback();
+            c.con.setAutoCommit(true);
+        } catch (SQLException ignored) {
+        } finally {
+            pool.release(c);
+        }
+    }
+
+    private static <T> CompletableFuture<T> done(T value) {
+        return CompletableFuture.completedFuture(value);
+    }
+
+    /**
+     * Runs blocking work on the database threads. When too much is already waiting the future fails
+     * with a {@link RejectedExecutionException}, which the server reports as {@link ManagerAnswer#BUSY}.
+     */
+    private <T> CompletableFuture<T> onDatabase(Supplier<T> work) {
+        if (databaseAdmitted.incrementAndGet() > databaseLimit) {
+            databaseAdmitted.decrementAndGet();
+            databaseRejected.incrementAndGet();
+            CompletableFuture<T> busy = new CompletableFuture<>();
+            busy.completeExceptionally(new RejectedExecutionException("database queue full"));
+            return busy;
         }
-        lock.lock();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return work.get();
+            } finally {
+                databaseAdmitted.decrementAndGet();
+            }
+        }, database);
+    }
+
+    /**
+     * Runs a mutation under the read side of {@link #writes}, held until its answer completes. It
+     * goes to the database threads unless it is known not to block: with everything in memory and
+     * group commit on, the only wait is for the committer, which is composed rather than joined.
+     */
+    private CompletableFuture<ManagerAnswer> write(boolean nonBlocking,
+                                                   Supplier<CompletableFuture<ManagerAnswer>> mutation) {
+        if (replica != null) {
+            return done(ManagerAnswer.READ_ONLY);
+        }
+        if (nonBlocking && cache == null) {
+            return locked(mutation);
+        }
+        return onDatabase(() -> locked(mutation)).thenCompose(answer -> answer);
+    }
+
+    private CompletableFuture<ManagerAnswer> locked(Supplier<CompletableFuture<ManagerAnswer>> mutation) {
+        long stamp = writes.readLock();
+        CompletableFuture<ManagerAnswer> answer;
+        try {
+            answer = mutation.get();
+        } catch (RuntimeException e) {
+            writes.unlockRead(stamp);
+            throw e;
+        }
+        return answer.whenComplete((result, error) -> writes.unlockRead(stamp));
+    }
+
+    public CompletableFuture<ManagerAnswer> insert(String currentUser, Long key, SpaceMarine marine) {
+        return write(committer != null, () -> startInsert(currentUser, key, marine));
+    }
+
+    private CompletableFuture<ManagerAnswer> startInsert(String currentUser, Long key, SpaceMarine marine) {
+        if (owns != null && !owns.test(key)) {
+            return done(ManagerAnswer.WRONG_SHARD);
+        }
+        try {
+            if (lookup(key) != null) {
+                return done(ManagerAnswer.BAD_OP);
+            }
+        } catch (SQLException throwables) {
+            return done(ManagerAnswer.DB_ERROR);
+        }
+        marine.setOwner(currentUser);
+        marine.setVersion(0);
+        if (committer != null) {
+            marine.setCreationDate(LocalDate.now());
+            return committer.insert(currentUser, key, marine).thenApply(answer -> {
+                if (answer == ManagerAnswer.OK) {
+                    stored(key, marine);
+                }
+                return answer;
+            });
+        }
+        DatabaseConnection c = null;
         try {
-            insertStatement.setLong(1, key);
-            insertStatement.setString(2, currentUser);
-            insertStatement.setString(3, marine.getName());
+            c = pool.take();
+            c.insertStatement.setLong(1, key);
+            c.insertStatement.setString(2, currentUser);
+            c.insertStatement.setString(3, marine.getName());
             PGpoint sqlPoint = new PGpoint(marine.getCoordinates().getX(), marine.getCoordinates().getY());
-            insertStatement.setObject(4, sqlPoint);
+            c.insertStatement.setObject(4, sqlPoint);
             LocalDate date = LocalDate.now();
             Date sqlDate = Date.valueOf(date);
-            insertStatement.setObject(5, sqlDate);
-            insertStatement.setFloat(6, marine.getHealth());
-            insertStatement.setObject(7, marine.getCategory(), Types.OTHER);
-            insertStatement.setObject(8, marine.getWeaponType(), Types.OTHER);
-            insertStatement.setObject(9, marine.getMeleeWeapon(), Types.OTHER);
-            insertStatement.setObject(10, marine.getChapter());
+            c.insertStatement.setObject(5, sqlDate);
+            c.insertStatement.setFloat(6, marine.getHealth());
+            c.insertStatement.setObject(7, marine.getCategory(), Types.OTHER);
+            c.insertStatement.setObject(8, marine.getWeaponType(), Types.OTHER);
+            c.insertStatement.setObject(9, marine.getMeleeWeapon(), Types.OTHER);
+            c.insertStatement.setObject(10, marine.getChapter());
 
-            ResultSet rs = insertStatement.executeQuery();
+            ResultSet rs = c.insertStatement.executeQuery();
 
-            rs.next();
+            if (!rs.next()) {
+                return done(ManagerAnswer.BAD_OP);
+            }
             Long id = rs.getLong("id");
 
             marine.setId(id);
             marine.setCreationDate(date);
-            marines.put(key, marine);
-            return ManagerAnswer.OK;
+            stored(key, marine);
+            return done(ManagerAnswer.OK);
         } catch (SQLException throwables) {
-            return ManagerAnswer.DB_ERROR;
+            return done(ManagerAnswer.DB_ERROR);
         } finally {
-            lock.unlock();
+            pool.release(c);
         }
     }
 
-    public List<Map.Entry<Long, SpaceMarine>> list() {
-        return new ArrayList<>(marines.entrySet());
+    public CompletableFuture<ManagerAnswer> list(MarineSink sink) {
+        return range(Long.MIN_VALUE, null, sink);
     }
 
-    public ManagerAnswer update(String currentUser, Long id, SpaceMarine marine) {
-        Optional<Long> mbKey = marines.keySet()
-                .stream().filter(k -> marines.get(k).getId().equals(id))
-                .findAny();
-        if (!mbKey.isPresent()) {
-            return ManagerAnswer.BAD_OP;
+    public CompletableFuture<ManagerAnswer> range(Long from, Long to, MarineSink sink) {
+        if (cache == null) {
+            return scan(marines.snapshot().marines.range(from, to), sink);
+        }
+        if (to != null && from >= to) {
+            return done(ManagerAnswer.OK);
+        }
+        return stream(c -> {
+            c.syncRangeStatement.setFetchSize(fetchSize);
+            c.syncRangeStatement.setLong(1, from);
+            c.syncRangeStatement.setLong(2, to == null ? Long.MAX_VALUE : to - 1);
+            return c.syncRangeStatement.executeQuery();
+        }, sink);
+    }
+
+    public CompletableFuture<ManagerAnswer> owned(String currentUser, MarineSink sink) {
+        if (cache == null) {
+            return scan(marines.snapshot().ownedBy(currentUser), sink);
+        }
+        return stream(c -> {
+            c.scanOwnerStatement.setFetchSize(fetchSize);
+            c.scanOwnerStatement.setString(1, currentUser);
+            return c.scanOwnerStatement.executeQuery();
+        }, sink);
+    }
+
+    public CompletableFuture<ManagerAnswer> update(String currentUser, Long id, SpaceMarine marine) {
+        return write(committer != null, () -> startUpdate(currentUser, id, marine, null));
+    }
+
+    /**
+     * Writes {@code marine} over the row with {@code id} if the row is still at the version it was read
+     * at, or at {@code expectedVersion} when the caller already decided based on an earlier read.
+     */
+    private CompletableFuture<ManagerAnswer> startUpdate(String currentUser, Long id, SpaceMarine marine,
+                                                         Long expectedVersion) {
+        Map.Entry<Long, SpaceMarine> found;
+        try {
+            found = lookupId(id);
+        } catch (SQLException throwables) {
+            return done(ManagerAnswer.DB_ERROR);
+        }
+        if (found == null) {
+            return done(ManagerAnswer.BAD_OP);
         }
-        Long key = mbKey.get();
-        SpaceMarine old = marines.get(key);
+        Long key = found.getKey();
+        SpaceMarine old = found.getValue();
         if (!isCurrentUsers(currentUser, old)) {
-            return ManagerAnswer.BAD_OWNER;
+            return done(ManagerAnswer.BAD_OWNER);
+        }
+        long version = old.getVersion();
+        if (expectedVersion != null && expectedVersion != version) {
+            return done(conflict(key));
         }
         marine.setId(id);
+        marine.setOwner(currentUser);
         marine.setCreationDate(old.getCreationDate());
-        lock.lock();
+        marine.setVersion(version);
+        if (committer != null) {
+            return committer.update(key, marine).thenApply(answer -> {
+                if (answer == ManagerAnswer.OK) {
+                    marine.setVersion(version + 1);
+                    stored(key, marine);
+                } else if (answer == ManagerAnswer.CONFLICT) {
+                    conflict(key);
+                }
+                return answer;
+            });
+        }
+        DatabaseConnection c = null;
         try {
-            updateStatement.setString(1, marine.getName());
+            c = pool.take();
+            c.updateStatement.setString(1, marine.getName());
             PGpoint sqlPoint = new PGpoint(marine.getCoordinates().getX(), marine.getCoordinates().getY());
-            updateStatement.setObject(2, sqlPoint);
-            updateStatement.setFloat(3, marine.getHealth());
-            updateStatement.setObject(4, marine.getCategory(), Types.OTHER);
-            updateStatement.setObject(5, marine.getWeaponType(), Types.OTHER);
-            updateStatement.setObject(6, marine.getMeleeWeapon(), Types.OTHER);
-            updateStatement.setObject(7, marine.getChapter());
-            updateStatement.setLong(8, key);
+            c.updateStatement.setObject(2, sqlPoint);
+            c.updateStatement.setFloat(3, marine.getHealth());
+            c.updateStatement.setObject(4, marine.getCategory(), Types.OTHER);
+            c.updateStatement.setObject(5, marine.getWeaponType(), Types.OTHER);
+            c.updateStatement.setObject(6, marine.getMeleeWeapon(), Types.OTHER);
+            c.updateStatement.setObject(7, marine.getChapter());
+            c.updateStatement.setLong(8, key);
+            c.updateStatement.setLong(9, version);
 
-            updateStatement.execute();
+            if (c.updateStatement.executeUpdate() == 0) {
+                return done(conflict(key));
+            }
 
-            marines.put(key, marine);
-            return ManagerAnswer.OK;
+            marine.setVersion(version + 1);
+            stored(key, marine);
+            return done(ManagerAnswer.OK);
         } catch (SQLException throwables) {
-            return ManagerAnswer.DB_ERROR;
+            return done(ManagerAnswer.DB_ERROR);
         } finally {
-            lock.unlock();
+            pool.release(c);
         }
     }
 
-    public ManagerAnswer removeKey(String currentUser, Long key) {
-        if (!marines.containsKey(key)) {
+    public CompletableFuture<ManagerAnswer> removeKey(String currentUser, Long key) {
+        return write(false, () -> done(removeKeyNow(currentUser, key)));
+    }
+
+    private ManagerAnswer removeKeyNow(String currentUser, Long key) {
+        SpaceMarine old;
+        try {
+            old = lookup(key);
+        } catch (SQLException throwables) {
+            return ManagerAnswer.DB_ERROR;
+        }
+        if (old == null) {
             return ManagerAnswer.BAD_OP;
         }
-        if (!isCurrentUsers(currentUser, marines.get(key))) {
+        if (!isCurrentUsers(currentUser, old)) {
             return ManagerAnswer.BAD_OWNER;
         }
-        lock.lock();
+        DatabaseConnection c = null;
         try {
-            removeKeyStatement.setLong(1, key);
+            c = pool.take();
+            c.removeKeyStatement.setLong(1, key);
+            c.removeKeyStatement.setLong(2, old.getVersion());
 
-            removeKeyStatement.execute();
+            if (c.removeKeyStatement.executeUpdate() == 0) {
+                return conflict(key);
+            }
 
-            marines.remove(key);
+            removedRow(key, old.getId());
             return ManagerAnswer.OK;
         } catch (SQLException throwables) {
             return ManagerAnswer.DB_ERROR;
         } finally {
-            lock.unlock();
+            pool.release(c);
         }
     }
 
-    public ManagerAnswer clear(String currentUser) {
-        lock.lock();
-        try {
-            clearStatement.setString(1, currentUser);
+    public CompletableFuture<ManagerAnswer> clear(String currentUser) {
+        return write(false, () -> done(clearNow(currentUser)));
+    }
 
-            clearStatement.execute();
+    private ManagerAnswer clearNow(String currentUser) {
+        DatabaseConnection c = null;
+        try {
+            c = pool.take();
+            c.clearStatement.setString(1, currentUser);
 
-            marines.keySet()
-                    .stream().filter(k -> isCurrentUsers(currentUser, marines.get(k)))
-                    .forEach(marines::remove);
+            removedRows(deletedRows(c.clearStatement.executeQuery()));
             return ManagerAnswer.OK;
         } catch (SQLException throwables) {
             return ManagerAnswer.DB_ERROR;
         } finally {
-            lock.unlock();
+            pool.release(c);
         }
     }
 
-    public ManagerAnswer removeLower(String currentUser, SpaceMarine marine) {
-        lock.lock();
-        try {
-            removeLowerStatement.setFloat(1, marine.getHealth());
-            removeLowerStatement.setString(2, currentUser);
+    public CompletableFuture<ManagerAnswer> removeLower(String currentUser, SpaceMarine marine) {
+        return write(false, () -> done(removeLowerNow(currentUser, marine)));
+    }
 
-            removeLowerStatement.execute();
+    private ManagerAnswer removeLowerNow(String currentUser, SpaceMarine marine) {
+        DatabaseConnection c = null;
+        try {
+            c = pool.take();
+            c.removeLowerStatement.setFloat(1, marine.getHealth());
+            c.removeLowerStatement.setString(2, currentUser);
 
-            marines.keySet()
-                    .stream().filter(k -> marines.get(k).compareTo(marine) < 0)
-                    .filter(k -> isCurrentUsers(currentUser, marines.get(k)))
-                    .forEach(marines::remove);
+            removedRows(deletedRows(c.removeLowerStatement.executeQuery()));
             return ManagerAnswer.OK;
         } catch (SQLException throwables) {
             return ManagerAnswer.DB_ERROR;
         } finally {
-            lock.unlock();
+            pool.release(c);
         }
     }
 
-    public ManagerAnswer replaceIfLower(String currentUser, Long key, SpaceMarine marine) {
-        if (!marines.containsKey(key)) {
-            return ManagerAnswer.BAD_OP;
-        }
-        SpaceMarine old = marines.get(key);
-        if (!isCurrentUsers(currentUser, old)) {
-            return ManagerAnswer.BAD_OWNER;
-        }
-        if (old.compareTo(marine) < 0) {
-            return update(currentUser, old.getId(), marine);
+    public CompletableFuture<ManagerAnswer> replaceIfLower(String currentUser, Long key, SpaceMarine marine) {
+        if (replica != null) {
+            return done(ManagerAnswer.READ_ONLY);
         }
-        return ManagerAnswer.OK;
+        CompletableFuture<SpaceMarine> found = cache == null ? CompletableFuture.completedFuture(marines.get(key))
+                : onDatabase(() -> {
+                    try {
+                        return lookup(key);
+                    } catch (SQLException e) {
+                        throw new CompletionException(e);
+                    }
+                });
+        return found.thenCompose(old -> {
+            if (old == null) {
+                return done(ManagerAnswer.BAD_OP);
+            }
+            if (!isCurrentUsers(currentUser, old)) {
+                return done(ManagerAnswer.BAD_OWNER);
+            }
+            if (old.compareTo(marine) < 0) {
+                return write(committer != null, () -> startUpdate(currentUser, old.getId(), marine, old.getVersion()));
+            }
+            return done(ManagerAnswer.OK);
+        }).exceptionally(e -> e.getCause() instanceof RejectedExecutionException
+                ? ManagerAnswer.BUSY : ManagerAnswer.DB_ERROR);
     }
 
-    public ManagerAnswer removeLowerKey(String currentUser, Long key) {
-        lock.lock();
-        try {
-            removeLowerKeyStatement.setLong(1, key);
-            removeLowerKeyStatement.setString(2, currentUser);
+    public CompletableFuture<ManagerAnswer> removeLowerKey(String currentUser, Long key) {
+        return write(false, () -> done(removeLowerKeyNow(currentUser, key)));
+    }
 
-            removeLowerKeyStatement.execute();
+    private ManagerAnswer removeLowerKeyNow(String currentUser, Long key) {
+        DatabaseConnection c = null;
+        try {
+            c = pool.take();
+            c.removeLowerKeyStatement.setLong(1, key);
+            c.removeLowerKeyStatement.setString(2, currentUser);
 
-            marines.keySet()
-                    .stream().filter(k -> k < key)
-                    .filter(k -> isCurrentUsers(currentUser, marines.get(k)))
-                    .forEach(marines::remove);
+            removedRows(deletedRows(c.removeLowerKeyStatement.executeQuery()));
             return ManagerAnswer.OK;
         } catch (SQLException throwables) {
             return ManagerAnswer.DB_ERROR;
         } finally {
-            lock.unlock();
+            pool.release(c);
+        }
+    }
+
+    public CompletableFuture<Iterable<Map.Entry<LocalDate, Long>>> groupCountingByCreationDate() {
+        if (cache == null) {
+            return CompletableFuture.completedFuture(marines.snapshot().countsByDate);
         }
+        return onDatabase(() -> {
+            DatabaseConnection c = null;
+            try {
+                c = pool.take();
+                List<Map.Entry<LocalDate, Long>> counts = new ArrayList<>();
+                ResultSet rs = c.countByDateStatement.executeQuery();
+                while (rs.next()) {
+                    counts.add(new AbstractMap.SimpleImmutableEntry<>(rs.getDate("date").toLocalDate(), rs.getLong("n")));
+                }
+                return counts;
+            } catch (SQLException throwables) {
+                return null;
+            } finally {
+                pool.release(c);
+            }
+        });
     }
 
-    public Map<LocalDate, Long> groupCountingByCreationDate() {
-        return marines.values()
-                .stream().collect(Collectors.groupingBy(
-                        SpaceMarine::getCreationDate, Collectors.counting()));
+    public CompletableFuture<ManagerAnswer> filterGreaterThanCategory(AstartesCategory category, MarineSink sink) {
+        return filter(category, null, null, sink);
     }
 
-    public List<Map.Entry<Long, SpaceMarine>> filterGreaterThanCategory(AstartesCategory category) {
-        return marines.entrySet()
-                .stream().filter(e -> {
-                    AstartesCategory cat = e.getValue().getCategory();
-                    return cat != null && cat.ordinal() > category.ordinal();
-                }).collect(Collectors.toList());
+    public CompletableFuture<ManagerAnswer> filter(AstartesCategory categoryAbove, Weapon weapon, MeleeWeapon meleeWeapon,
+                                MarineSink sink) {
+        if (cache == null) {
+            return scan(marines.snapshot().filter(categoryAbove, weapon, meleeWeapon), sink);
+        }
+        return stream(c -> {
+            c.filterStatement.setFetchSize(fetchSize);
+            String category = categoryAbove == null ? null : categoryAbove.name();
+            String weaponName = weapon == null ? null : weapon.name();
+            String meleeName = meleeWeapon == null ? null : meleeWeapon.name();
+            c.filterStatement.setString(1, category);
+            c.filterStatement.setString(2, category);
+            c.filterStatement.setString(3, weaponName);
+            c.filterStatement.setString(4, weaponName);
+            c.filterStatement.setString(5, meleeName);
+            c.filterStatement.setString(6, meleeName);
+            return c.filterStatement.executeQuery();
+        }, sink);
     }
 
-    public List<Map.Entry<Long, SpaceMarine>> ascending() {
-        return marines.entrySet().stream().sorted(Map.Entry.comparingByValue()).collect(Collectors.toList());
+    public CompletableFuture<ManagerAnswer> ascending(MarineSink sink) {
+        if (cache == null) {
+            return scan(marines.snapshot().ascending(), sink);
+        }
+        return stream(c -> {
+            c.scanHealthStatement.setFetchSize(fetchSize);
+            return c.scanHealthStatement.executeQuery();
+        }, sink);
     }
 }
@@ -0,0 +1,105 @@
+package server;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+class FrameDecoder {
+
+    interface Handler {
+        boolean frame(ByteBuffer frame) throws IOException;
+    }
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private final BufferPool pool;
+    private final int maxFrame;
+    private final Handler handler;
+    private ByteBuffer readBuffer;
+    private ByteBuffer large;
+    private int frameLength = -1;
+
+    FrameDecoder(BufferPool pool, int maxFrame, Handler handler) {
+        this.pool = pool;
+        this.maxFrame = maxFrame;
+        this.handler = handler;
+        readBuffer = pool.acquire(READ_BUFFER_SIZE);
+    }
+
+    boolean read(ReadableByteChannel channel) throws IOException {
+        int r = channel.read(large != null ? large : readBuffer);
+        if (r == -1) {
+            return false;
+        }
+        drain();
+        return true;
+    }
+
+    void drain() throws IOException {
+        if (large != null) {
+            if (large.hasRemaining()) {
+                return;
+            }
+            ByteBuffer frame = large;
+            large = null;
+            frameLength = -1;
+            frame.flip();
+            try {
+                if (!handler.frame(frame)) {
+                    return;
+                }
+            } finally {
+                pool.release(frame);
+            }
+        }
+
+        readBuffer.flip();
+        try {
+            while (true) {
+                if (frameLength == -1) {
+                    if (readBuffer.remaining() < 4) {
+                        break;
+                    }
+                    frameLength = readBuffer.getInt();
+                    if (frameLength < 0 || frameLength > maxFrame) {
+                        throw new ProtocolException("frame of " + frameLength + " bytes exceeds limit of " + maxFrame);
+                    }
+                }
+                if (readBuffer.remaining() >= frameLength) {
+                    int end = readBuffer.position() + frameLength;
+                    int limit = readBuffer.limit();
+                    frameLength = -1;
+                    readBuffer.limit(end);
+                    boolean more;
+                    try {
+                        more = handler.frame(readBuffer);
+                    } finally {
+                        readBuffer.limit(limit);
+                        readBuffer.position(end);
+                    }
+                    if (!more) {
+                        break;
+                    }
+                } else if (frameLength > readBuffer.capacity()) {
+                    large = pool.acquire(frameLength);
+                    large.limit(frameLength);
+                    large.put(readBuffer);
+                    break;
+                } else {
+                    break;
+                }
+            }
+        } finally {
+            readBuffer.compact();
+        }
+    }
+
+    void release() {
+        pool.release(readBuffer);
+        if (large != null) {
+            pool.release(large);
+            large = null;
+        }
+    }
+}
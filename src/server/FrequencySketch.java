@@ -0,0 +1,59 @@
+package server;
+
+/**
+ * Count-min sketch of 4-bit counters, sixteen to a long, used to estimate how often a key was
+ * accessed recently. All counters are halved once enough increments have been recorded, so old
+ * popularity fades.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int expectedEntries) {
+        int size = Integer.highestOneBit(Math.max(16, expectedEntries) - 1) << 1;
+        table = new long[size];
+        mask = size - 1;
+        sampleSize = 10 * size;
+    }
+
+    private static int hash(long key, int i) {
+        long h = (key + SEEDS[i]) * SEEDS[i];
+        h ^= h >>> 32;
+        return (int) (h ^ (h >>> 17));
+    }
+
+    int frequency(long key) {
+        int min = 15;
+        for (int i = 0; i < 4; i++) {
+            int h = hash(key, i);
+            int shift = (h & 15) << 2;
+            min = Math.min(min, (int) ((table[(h >>> 4) & mask] >>> shift) & 15));
+        }
+        return min;
+    }
+
+    void increment(long key) {
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int h = hash(key, i);
+            int index = (h >>> 4) & mask;
+            int shift = (h & 15) << 2;
+            if (((table[index] >>> shift) & 15) != 15) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+            }
+            additions /= 2;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package server;
+
+import marine.SpaceMarine;
+import org.postgresql.geometric.PGpoint;
+
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+class GroupCommitter implements Runnable {
+
+    private static class PendingWrite {
+        final boolean insert;
+        final String owner;
+        final Long key;
+        final SpaceMarine marine;
+        final CompletableFuture<ManagerAnswer> answer = new CompletableFuture<>();
+
+        PendingWrite(boolean insert, String owner, Long key, SpaceMarine marine) {
+            this.insert = insert;
+            this.owner = owner;
+            this.key = key;
+            this.marine = marine;
+        }
+    }
+
+    private final ConnectionPool pool;
+    private final long windowNanos;
+    private final int maxBatch;
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+
+    GroupCommitter(ConnectionPool pool, long windowMillis, int maxBatch) {
+        this.pool = pool;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.maxBatch = maxBatch;
+        Thread thread = new Thread(this, "group-commit");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    CompletableFuture<ManagerAnswer> insert(String owner, Long key, SpaceMarine marine) {
+        if (!complete(marine) || marine.getCreationDate() == null) {
+            return CompletableFuture.completedFuture(ManagerAnswer.BAD_OP);
+        }
+        PendingWrite write = new PendingWrite(true, owner, key, marine);
+        queue.add(write);
+        return write.answer;
+    }
+
+    CompletableFuture<ManagerAnswer> update(Long key, SpaceMarine marine) {
+        if (!complete(marine)) {
+            return CompletableFuture.completedFuture(ManagerAnswer.BAD_OP);
+        }
+        PendingWrite write = new PendingWrite(false, marine.getOwner(), key, marine);
+        queue.add(write);
+        return write.answer;
+    }
+
+    /**
+     * Whether the marine has everything the statements bind, so one bad write never reaches a batch.
+     */
+    private static boolean complete(SpaceMarine marine) {
+        return marine.getName() != null && marine.getCoordinates() != null
+                && marine.getCoordinates().getY() != null && marine.getHealth() != null
+                && marine.getWeaponType() != null && marine.getMeleeWeapon() != null;
+    }
+
+    long batches() {
+        return batches.get();
+    }
+
+    long writes() {
+        return writes.get();
+    }
+
+    int queued() {
+        return queue.size();
+    }
+
+    @Override
+    public void run() {
+        List<PendingWrite> batch = new ArrayList<>(maxBatch);
+        while (true) {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxBatch) {
+                    long left = deadline - System.nanoTime();
+                    PendingWrite write = left > 0 ? queue.poll(left, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (write == null) {
+                        break;
+                    }
+                    batch.add(write);
+                }
+                commit(batch);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                System.out.println("group commit of " + batch.size() + " writes failed: " + e);
+            } finally {
+                for (PendingWrite write : batch) {
+                    write.answer.complete(ManagerAnswer.DB_ERROR);
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<PendingWrite> batch) {
+        DatabaseConnection c = null;
+        try {
+            c = pool.take();
+            try {
+                c.con.setAutoCommit(false);
+                ManagerAnswer[] answers = commitBatch(c, batch);
+                c.con.commit();
+                batches.incrementAndGet();
+                writes.addAndGet(batch.size());
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).answer.complete(answers[i]);
+                }
+            } catch (SQLException | RuntimeException e) {
+                c.con.rollback();
+                c.insertWithIdStatement.clearBatch();
+                c.updateStatement.clearBatch();
+                c.con.setAutoCommit(true);
+                for (PendingWrite write : batch) {
+                    commitOne(c, write);
+                }
+            } finally {
+                c.con.setAutoCommit(true);
+            }
+        } catch (SQLException ignored) {
+        } finally {
+            pool.release(c);
+        }
+    }
+
+    /**
+     * Runs the batch and works out each write's answer: an insert whose key was taken meanwhile
+     * inserted nothing, and so did an update whose row moved past the version it expected.
+     */
+    private ManagerAnswer[] commitBatch(DatabaseConnection c, List<PendingWrite> batch) throws SQLException {
+        int inserts = 0;
+        for (PendingWrite write : batch) {
+            if (write.insert) {
+                inserts++;
+            }
+        }
+        long[] ids = new long[inserts];
+        if (inserts > 0) {
+            c.nextIdsStatement.setInt(1, inserts);
+            ResultSet rs = c.nextIdsStatement.executeQuery();
+            for (int i = 0; i < inserts && rs.next(); i++) {
+                ids[i] = rs.getLong(1);
+            }
+        }
+        int i = 0;
+        for (PendingWrite write : batch) {
+            if (write.insert) {
+                bindInsert(c.insertWithIdStatement, write, ids[i++]);
+                c.insertWithIdStatement.addBatch();
+            } else {
+                bindUpdate(c.updateStatement, write);
+                c.updateStatement.addBatch();
+            }
+        }
+        int[] inserted = inserts > 0 ? c.insertWithIdStatement.executeBatch() : new int[0];
+        int[] updated = inserts < batch.size() ? c.updateStatement.executeBatch() : new int[0];
+        ManagerAnswer[] answers = new ManagerAnswer[batch.size()];
+        i = 0;
+        int u = 0;
+        for (int w = 0; w < batch.size(); w++) {
+            PendingWrite write = batch.get(w);
+            if (write.insert) {
+                write.marine.setId(ids[i]);
+                answers[w] = applied(inserted[i++]) ? ManagerAnswer.OK : ManagerAnswer.BAD_OP;
+            } else {
+                answers[w] = applied(updated[u++]) ? ManagerAnswer.OK : ManagerAnswer.CONFLICT;
+            }
+        }
+        return answers;
+    }
+
+    private static boolean applied(int count) {
+        return count > 0 || count == Statement.SUCCESS_NO_INFO;
+    }
+
+    private void commitOne(DatabaseConnection c, PendingWrite write) {
+        try {
+            if (write.insert) {
+                c.nextIdsStatement.setInt(1, 1);
+                ResultSet rs = c.nextIdsStatement.executeQuery();
+                rs.next();
+                long id = rs.getLong(1);
+                bindInsert(c.insertWithIdStatement, write, id);
+                if (c.insertWithIdStatement.executeUpdate() == 0) {
+                    write.answer.complete(ManagerAnswer.BAD_OP);
+                    return;
+                }
+                write.marine.setId(id);
+            } else {
+                bindUpdate(c.updateStatement, write);
+                if (c.updateStatement.executeUpdate() == 0) {
+                    write.answer.complete(ManagerAnswer.CONFLICT);
+                    return;
+                }
+            }
+            writes.incrementAndGet();
+            write.answer.complete(ManagerAnswer.OK);
+        } catch (SQLException | RuntimeException e) {
+            write.answer.complete(ManagerAnswer.DB_ERROR);
+        }
+    }
+
+    private static void bindInsert(PreparedStatement statement, PendingWrite write, long id) throws SQLException {
+        SpaceMarine marine = write.marine;
+        statement.setLong(1, write.key);
+        statement.setLong(2, id);
+        statement.setString(3, write.owner);
+        statement.setString(4, marine.getName());
+        statement.setObject(5, new PGpoint(marine.getCoordinates().getX(), marine.getCoordinates().getY()));
+        statement.setObject(6, Date.valueOf(marine.getCreationDate()));
+        statement.setFloat(7, marine.getHealth());
+        statement.setObject(8, marine.getCategory(), Types.OTHER);
+        statement.setObject(9, marine.getWeaponType(), Types.OTHER);
+        statement.setObject(10, marine.getMeleeWeapon(), Types.OTHER);
+        statement.setObject(11, marine.getChapter());
+    }
+
+    private static void bindUpdate(PreparedStatement statement, PendingWrite write) throws SQLException {
+        SpaceMarine marine = write.marine;
+        statement.setString(1, marine.getName());
+        statement.setObject(2, new PGpoint(marine.getCoordinates().getX(), marine.getCoordinates().getY()));
+        statement.setFloat(3, marine.getHealth());
+        statement.setObject(4, marine.getCategory(), Types.OTHER);
+        statement.setObject(5, marine.getWeaponType(), Types.OTHER);
+        statement.setObject(6, marine.getMeleeWeapon(), Types.OTHER);
+        statement.setObject(7, marine.getChapter());
+        statement.setLong(8, write.key);
+        statement.setLong(9, marine.getVersion());
+    }
+}
@@ -4,5 +4,9 @@ enum ManagerAnswer {
     OK,
     BAD_OP,
     BAD_OWNER,
-    DB_ERROR
+    DB_ERROR,
+    WRONG_SHARD,
+    READ_ONLY,
+    CONFLICT,
+    BUSY
 }
@@ -0,0 +1,241 @@
+package server;
+
+import marine.SpaceMarine;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.BiPredicate;
+
+/**
+ * Bounded, weight-aware W-TinyLFU cache of marines by key. New entries land in a small LRU window;
+ * entries leaving the window only get into the segmented LRU main area if the frequency sketch
+ * says they are more popular than the main area's eviction victim.
+ */
+class MarineCache {
+
+    private static final class Node {
+        final long key;
+        SpaceMarine value;
+        int weight;
+        Segment segment;
+        Node prev;
+        Node next;
+
+        Node(long key) {
+            this.key = key;
+        }
+    }
+
+    private static final class Segment {
+        final Node head = new Node(0);
+        long weight;
+
+        Segment() {
+            head.prev = head;
+            head.next = head;
+        }
+
+        Node first() {
+            return head.next == head ? null : head.next;
+        }
+
+        Node after(Node node) {
+            return node.next == head ? null : node.next;
+        }
+
+        void addLast(Node node) {
+            node.segment = this;
+            node.prev = head.prev;
+            node.next = head;
+            head.prev.next = node;
+            head.prev = node;
+            weight += node.weight;
+        }
+
+        void unlink(Node node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            weight -= node.weight;
+        }
+    }
+
+    private final Map<Long, Node> nodes = new HashMap<>();
+    private final Map<Long, Long> keysById = new HashMap<>();
+    private final Segment window = new Segment();
+    private final Segment probation = new Segment();
+    private final Segment protectedSegment = new Segment();
+    private final FrequencySketch sketch;
+    private final long maxWeight;
+    private final long windowMax;
+    private final long protectedMax;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    MarineCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+        windowMax = Math.max(1, maxWeight / 100);
+        protectedMax = (maxWeight - windowMax) * 4 / 5;
+        sketch = new FrequencySketch((int) Math.min(1 << 24, maxWeight / 256));
+    }
+
+    static int weigh(SpaceMarine marine) {
+        int weight = 160 + 2 * marine.getName().length() + 2 * marine.getOwner().length();
+        if (marine.getChapter() != null) {
+            weight += 48 + 2 * marine.getChapter().getName().length();
+            if (marine.getChapter().getWorld() != null) {
+                weight += 2 * marine.getChapter().getWorld().length();
+            }
+        }
+        return weight;
+    }
+
+    synchronized SpaceMarine get(long key) {
+        sketch.increment(key);
+        Node node = nodes.get(key);
+        if (node == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        onAccess(node);
+        return node.value;
+    }
+
+    synchronized Long keyById(long id) {
+        return keysById.get(id);
+    }
+
+    /**
+     * Caches {@code marine} unless the entry already holds the same row at the same or a later
+     * version, so a read that raced a write can't bring back the older row.
+     */
+    synchronized void put(long key, SpaceMarine marine) {
+        Node node = nodes.get(key);
+        if (node != null && Objects.equals(node.value.getId(), marine.getId())
+                && node.value.getVersion() >= marine.getVersion()) {
+            onAccess(node);
+            return;
+        }
+        if (node == null) {
+            node = new Node(key);
+            node.value = marine;
+            node.weight = weigh(marine);
+            nodes.put(key, node);
+            window.addLast(node);
+        } else {
+            unindex(node);
+            node.segment.unlink(node);
+            node.value = marine;
+            node.weight = weigh(marine);
+            node.segment.addLast(node);
+            onAccess(node);
+        }
+        if (marine.getId() != null) {
+            keysById.put(marine.getId(), key);
+        }
+        evict();
+    }
+
+    synchronized void invalidate(long key) {
+        Node node = nodes.get(key);
+        if (node != null) {
+            remove(node);
+        }
+    }
+
+    synchronized void invalidateIf(BiPredicate<Long, SpaceMarine> condition) {
+        nodes.values().removeIf(node -> {
+            if (condition.test(node.key, node.value)) {
+                node.segment.unlink(node);
+                unindex(node);
+                return true;
+            }
+            return false;
+        });
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized long evictions() {
+        return evictions;
+    }
+
+    synchronized int size() {
+        return nodes.size();
+    }
+
+    synchronized long weight() {
+        return window.weight + probation.weight + protectedSegment.weight;
+    }
+
+    long maxWeight() {
+        return maxWeight;
+    }
+
+    private void unindex(Node node) {
+        if (node.value.getId() != null) {
+            keysById.remove(node.value.getId(), node.key);
+        }
+    }
+
+    private void remove(Node node) {
+        node.segment.unlink(node);
+        nodes.remove(node.key);
+        unindex(node);
+    }
+
+    private void onAccess(Node node) {
+        Segment segment = node.segment;
+        segment.unlink(node);
+        if (segment == probation) {
+            protectedSegment.addLast(node);
+            while (protectedSegment.weight > protectedMax) {
+                Node demoted = protectedSegment.first();
+                protectedSegment.unlink(demoted);
+                probation.addLast(demoted);
+            }
+        } else {
+            segment.addLast(node);
+        }
+    }
+
+    private void evict() {
+        Node candidate = null;
+        while (window.weight > windowMax) {
+            Node node = window.first();
+            window.unlink(node);
+            probation.addLast(node);
+            if (candidate == null) {
+                candidate = node;
+            }
+        }
+        while (weight() > maxWeight) {
+            Node victim = probation.first();
+            if (victim == null) {
+                victim = protectedSegment.first() != null ? protectedSegment.first() : window.first();
+            }
+            if (candidate == null || victim == candidate) {
+                if (victim == candidate) {
+                    candidate = probation.after(candidate);
+                }
+                remove(victim);
+            } else if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                remove(victim);
+            } else {
+                Node next = probation.after(candidate);
+                remove(candidate);
+                candidate = next;
+            }
+            evictions++;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package server;
+
+import marine.SpaceMarine;
+
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Takes the marines a scan finds. A scan only writes while the sink has room and otherwise parks
+ * itself with {@link #whenReady}, so a large result is produced as fast as the client reads it
+ * and never piles up in memory.
+ */
+interface MarineSink extends Consumer<Map.Entry<Long, SpaceMarine>> {
+
+    boolean hasRoom();
+
+    /**
+     * Arranges for {@code resume} to run once there is room again or the client is gone and returns
+     * true, or returns false if there is room already.
+     */
+    boolean whenReady(Runnable resume);
+
+    boolean closed();
+}
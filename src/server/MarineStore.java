@@ -0,0 +1,371 @@
+package server;
+
+import marine.AstartesCategory;
+import marine.MeleeWeapon;
+import marine.SpaceMarine;
+import marine.Weapon;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * In-memory copy of the marines table. Readers take an immutable {@link Snapshot};
+ * writers build a new snapshot and publish it with a compare-and-set, retrying on conflict.
+ */
+class MarineStore {
+
+    static final class HealthKey {
+        final float health;
+        final long key;
+
+        HealthKey(float health, long key) {
+            this.health = health;
+            this.key = key;
+        }
+
+        static final Comparator<HealthKey> ORDER = (a, b) -> {
+            int c = Float.compare(a.health, b.health);
+            return c != 0 ? c : Long.compare(a.key, b.key);
+        };
+    }
+
+    /**
+     * One bitmap of marine ids per value of each enum attribute.
+     */
+    static final class EnumIndex {
+        static final EnumIndex EMPTY = new EnumIndex(
+                filled(AstartesCategory.values().length),
+                filled(Weapon.values().length),
+                filled(MeleeWeapon.values().length));
+
+        final Bitmap[] categories;
+        final Bitmap[] weapons;
+        final Bitmap[] melee;
+
+        private EnumIndex(Bitmap[] categories, Bitmap[] weapons, Bitmap[] melee) {
+            this.categories = categories;
+            this.weapons = weapons;
+            this.melee = melee;
+        }
+
+        private static Bitmap[] filled(int n) {
+            Bitmap[] bitmaps = new Bitmap[n];
+            Arrays.fill(bitmaps, Bitmap.EMPTY);
+            return bitmaps;
+        }
+
+        EnumIndex with(SpaceMarine marine, boolean present) {
+            if (marine.getId() == null) {
+                return this;
+            }
+            long id = marine.getId();
+            Bitmap[] categories = this.categories;
+            if (marine.getCategory() != null) {
+                categories = categories.clone();
+                int i = marine.getCategory().ordinal();
+                categories[i] = present ? categories[i].set(id) : categories[i].clear(id);
+            }
+            Bitmap[] weapons = this.weapons.clone();
+            int w = marine.getWeaponType().ordinal();
+            weapons[w] = present ? weapons[w].set(id) : weapons[w].clear(id);
+            Bitmap[] melee = this.melee.clone();
+            int m = marine.getMeleeWeapon().ordinal();
+            melee[m] = present ? melee[m].set(id) : melee[m].clear(id);
+            return new EnumIndex(categories, weapons, melee);
+        }
+
+        static EnumIndex build(List<Map.Entry<Long, SpaceMarine>> entries) {
+            Bitmap.Builder[] categories = builders(AstartesCategory.values().length);
+            Bitmap.Builder[] weapons = builders(Weapon.values().length);
+            Bitmap.Builder[] melee = builders(MeleeWeapon.values().length);
+            for (Map.Entry<Long, SpaceMarine> entry : entries) {
+                SpaceMarine marine = entry.getValue();
+                if (marine.getId() == null) {
+                    continue;
+                }
+                if (marine.getCategory() != null) {
+                    categories[marine.getCategory().ordinal()].set(marine.getId());
+                }
+                weapons[marine.getWeaponType().ordinal()].set(marine.getId());
+                melee[marine.getMeleeWeapon().ordinal()].set(marine.getId());
+            }
+            return new EnumIndex(built(categories), built(weapons), built(melee));
+        }
+
+        private static Bitmap.Builder[] builders(int n) {
+            Bitmap.Builder[] builders = new Bitmap.Builder[n];
+            for (int i = 0; i < n; i++) {
+                builders[i] = new Bitmap.Builder();
+            }
+            return builders;
+        }
+
+        private static Bitmap[] built(Bitmap.Builder[] builders) {
+            Bitmap[] bitmaps = new Bitmap[builders.length];
+            for (int i = 0; i < builders.length; i++) {
+                bitmaps[i] = builders[i].build();
+            }
+            return bitmaps;
+        }
+
+        /**
+         * Ids matching every given condition; a null condition matches anything, and null is returned
+         * when there are no conditions at all.
+         */
+        Bitmap matching(AstartesCategory above, Weapon weapon, MeleeWeapon meleeWeapon) {
+            Bitmap rows = null;
+            if (above != null) {
+                rows = Bitmap.EMPTY;
+                for (int i = above.ordinal() + 1; i < categories.length; i++) {
+                    rows = rows.or(categories[i]);
+                }
+            }
+            if (weapon != null) {
+                rows = rows == null ? weapons[weapon.ordinal()] : rows.and(weapons[weapon.ordinal()]);
+            }
+            if (meleeWeapon != null) {
+                rows = rows == null ? melee[meleeWeapon.ordinal()] : rows.and(melee[meleeWeapon.ordinal()]);
+            }
+            return rows;
+        }
+    }
+
+    static final class Snapshot {
+        final PersistentTreeMap<Long, SpaceMarine> marines;
+        final PersistentTreeMap<Long, Long> keysById;
+        final PersistentTreeMap<HealthKey, SpaceMarine> byHealth;
+        final PersistentTreeMap<String, PersistentTreeMap<Long, SpaceMarine>> byOwner;
+        final PersistentTreeMap<LocalDate, Long> countsByDate;
+        final EnumIndex enums;
+
+        private Snapshot(PersistentTreeMap<Long, SpaceMarine> marines,
+                         PersistentTreeMap<Long, Long> keysById,
+                         PersistentTreeMap<HealthKey, SpaceMarine> byHealth,
+                         PersistentTreeMap<String, PersistentTreeMap<Long, SpaceMarine>> byOwner,
+                         PersistentTreeMap<LocalDate, Long> countsByDate,
+                         EnumIndex enums) {
+            this.marines = marines;
+            this.keysById = keysById;
+            this.byHealth = byHealth;
+            this.byOwner = byOwner;
+            this.countsByDate = countsByDate;
+            this.enums = enums;
+        }
+
+        int size() {
+            return marines.size();
+        }
+
+        SpaceMarine get(Long key) {
+            return marines.get(key);
+        }
+
+        Long keyById(Long id) {
+            return keysById.get(id);
+        }
+
+        Iterable<Map.Entry<Long, SpaceMarine>> ascending() {
+            return byKey(byHealth);
+        }
+
+        PersistentTreeMap<Long, SpaceMarine> ownedBy(String owner) {
+            PersistentTreeMap<Long, SpaceMarine> owned = byOwner.get(owner);
+            return owned == null ? PersistentTreeMap.<Long, SpaceMarine>empty() : owned;
+        }
+
+        Iterable<Map.Entry<Long, SpaceMarine>> filter(AstartesCategory above, Weapon weapon, MeleeWeapon melee) {
+            Bitmap rows = enums.matching(above, weapon, melee);
+            if (rows == null) {
+                return marines;
+            }
+            List<Map.Entry<Long, SpaceMarine>> result = new ArrayList<>();
+            for (long id : rows) {
+                Long key = keysById.get(id);
+                result.add(new AbstractMap.SimpleImmutableEntry<>(key, marines.get(key)));
+            }
+            return result;
+        }
+
+        LocalDate newestDate() {
+            return countsByDate.lastKey();
+        }
+
+        private PersistentTreeMap<LocalDate, Long> counted(PersistentTreeMap<LocalDate, Long> counts, LocalDate date, long delta) {
+            Long count = counts.get(date);
+            long next = (count == null ? 0 : count) + delta;
+            return next == 0 ? counts.remove(date) : counts.put(date, next);
+        }
+
+        private PersistentTreeMap<String, PersistentTreeMap<Long, SpaceMarine>> withoutOwned(String owner, Long key) {
+            PersistentTreeMap<Long, SpaceMarine> owned = ownedBy(owner).remove(key);
+            return owned.isEmpty() ? byOwner.remove(owner) : byOwner.put(owner, owned);
+        }
+
+        Snapshot put(Long key, SpaceMarine marine) {
+            PersistentTreeMap<Long, Long> ids = keysById;
+            PersistentTreeMap<HealthKey, SpaceMarine> health = byHealth;
+            PersistentTreeMap<String, PersistentTreeMap<Long, SpaceMarine>> owners = byOwner;
+            PersistentTreeMap<LocalDate, Long> counts = countsByDate;
+            EnumIndex index = enums;
+            SpaceMarine old = marines.get(key);
+            if (old != null) {
+                index = index.with(old, false);
+                counts = counted(counts, old.getCreationDate(), -1);
+                if (old.getId() != null) {
+                    ids = ids.remove(old.getId());
+                }
+                health = health.remove(new HealthKey(old.getHealth(), key));
+                if (!old.getOwner().equals(marine.getOwner())) {
+                    owners = withoutOwned(old.getOwner(), key);
+                }
+            }
+            if (marine.getId() != null) {
+                ids = ids.put(marine.getId(), key);
+            }
+            health = health.put(new HealthKey(marine.getHealth(), key), marine);
+            PersistentTreeMap<Long, SpaceMarine> owned = owners.get(marine.getOwner());
+            if (owned == null) {
+                owned = PersistentTreeMap.empty();
+            }
+            owners = owners.put(marine.getOwner(), owned.put(key, marine));
+            counts = counted(counts, marine.getCreationDate(), 1);
+            return new Snapshot(marines.put(key, marine), ids, health, owners, counts, index.with(marine, true));
+        }
+
+        Snapshot remove(Long key) {
+            SpaceMarine old = marines.get(key);
+            if (old == null) {
+                return this;
+            }
+            PersistentTreeMap<Long, Long> ids = old.getId() == null ? keysById : keysById.remove(old.getId());
+            return new Snapshot(marines.remove(key), ids,
+                    byHealth.remove(new HealthKey(old.getHealth(), key)),
+                    withoutOwned(old.getOwner(), key),
+                    counted(countsByDate, old.getCreationDate(), -1),
+                    enums.with(old, false));
+        }
+    }
+
+    private static Iterable<Map.Entry<Long, SpaceMarine>> byKey(Iterable<Map.Entry<HealthKey, SpaceMarine>> entries) {
+        return () -> new Iterator<Map.Entry<Long, SpaceMarine>>() {
+            private final Iterator<Map.Entry<HealthKey, SpaceMarine>> it = entries.iterator();
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Map.Entry<Long, SpaceMarine> next() {
+                Map.Entry<HealthKey, SpaceMarine> entry = it.next();
+                return new AbstractMap.SimpleImmutableEntry<>(entry.getKey().key, entry.getValue());
+            }
+        };
+    }
+
+    private final AtomicReference<Snapshot> current = new AtomicReference<>(new Snapshot(
+            PersistentTreeMap.<Long, SpaceMarine>empty(),
+            PersistentTreeMap.<Long, Long>empty(),
+            PersistentTreeMap.empty(HealthKey.ORDER),
+            PersistentTreeMap.<String, PersistentTreeMap<Long, SpaceMarine>>empty(),
+            PersistentTreeMap.<LocalDate, Long>empty(),
+            EnumIndex.EMPTY));
+
+    Snapshot snapshot() {
+        return current.get();
+    }
+
+    SpaceMarine get(Long key) {
+        return current.get().get(key);
+    }
+
+    private Snapshot update(UnaryOperator<Snapshot> change) {
+        while (true) {
+            Snapshot old = current.get();
+            Snapshot next = change.apply(old);
+            if (next == old || current.compareAndSet(old, next)) {
+                return next;
+            }
+        }
+    }
+
+    void put(Long key, SpaceMarine marine) {
+        update(s -> s.put(key, marine));
+    }
+
+    void remove(Long key) {
+        update(s -> s.remove(key));
+    }
+
+    /**
+     * Stores {@code marine} unless the entry already holds the same row at the same or a later
+     * version, so writes that finish out of order can't roll an entry back. Returns whether it was stored.
+     */
+    boolean putIfNewer(Long key, SpaceMarine marine) {
+        return update(s -> {
+            SpaceMarine old = s.get(key);
+            if (old != null && Objects.equals(old.getId(), marine.getId()) && old.getVersion() >= marine.getVersion()) {
+                return s;
+            }
+            return s.put(key, marine);
+        }).get(key) == marine;
+    }
+
+    /**
+     * Removes, in one atomic step, the entries among {@code candidates} that satisfy {@code condition},
+     * and returns their keys.
+     */
+    List<Long> removeIf(Function<Snapshot, Iterable<Map.Entry<Long, SpaceMarine>>> candidates,
+                        BiPredicate<Long, SpaceMarine> condition) {
+        List<Long> removed = new ArrayList<>();
+        update(s -> {
+            removed.clear();
+            Snapshot next = s;
+            for (Map.Entry<Long, SpaceMarine> entry : candidates.apply(s)) {
+                if (condition.test(entry.getKey(), entry.getValue())) {
+                    next = next.remove(entry.getKey());
+                    removed.add(entry.getKey());
+                }
+            }
+            return next;
+        });
+        return removed;
+    }
+
+    /**
+     * Replaces the contents with entries already sorted by key.
+     */
+    void resetSorted(List<Map.Entry<Long, SpaceMarine>> entries) {
+        List<Map.Entry<Long, Long>> ids = new ArrayList<>(entries.size());
+        List<Map.Entry<HealthKey, SpaceMarine>> health = new ArrayList<>(entries.size());
+        Map<String, List<Map.Entry<Long, SpaceMarine>>> owned = new TreeMap<>();
+        TreeMap<LocalDate, Long> counts = new TreeMap<>();
+        for (Map.Entry<Long, SpaceMarine> entry : entries) {
+            SpaceMarine marine = entry.getValue();
+            counts.merge(marine.getCreationDate(), 1L, Long::sum);
+            owned.computeIfAbsent(marine.getOwner(), o -> new ArrayList<>()).add(entry);
+            if (marine.getId() != null) {
+                ids.add(new AbstractMap.SimpleImmutableEntry<>(marine.getId(), entry.getKey()));
+            }
+            health.add(new AbstractMap.SimpleImmutableEntry<>(new HealthKey(marine.getHealth(), entry.getKey()), marine));
+        }
+        ids.sort(Map.Entry.comparingByKey());
+        health.sort((a, b) -> HealthKey.ORDER.compare(a.getKey(), b.getKey()));
+        List<Map.Entry<String, PersistentTreeMap<Long, SpaceMarine>>> owners = new ArrayList<>(owned.size());
+        for (Map.Entry<String, List<Map.Entry<Long, SpaceMarine>>> entry : owned.entrySet()) {
+            owners.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(),
+                    PersistentTreeMap.fromSorted(Comparator.<Long>naturalOrder(), entry.getValue())));
+        }
+        current.set(new Snapshot(
+                PersistentTreeMap.fromSorted(Comparator.<Long>naturalOrder(), entries),
+                PersistentTreeMap.fromSorted(Comparator.<Long>naturalOrder(), ids),
+                PersistentTreeMap.fromSorted(HealthKey.ORDER, health),
+                PersistentTreeMap.fromSorted(Comparator.<String>naturalOrder(), owners),
+                PersistentTreeMap.fromSorted(Comparator.<LocalDate>naturalOrder(), new ArrayList<>(counts.entrySet())),
+                EnumIndex.build(entries)));
+    }
+}
@@ -0,0 +1,245 @@
+package server;
+
+import java.util.*;
+
+/**
+ * Immutable weight-balanced search tree. Every update returns a new map that shares
+ * all untouched nodes with the old one, so holding on to a map is a free snapshot.
+ */
+final class PersistentTreeMap<K, V> implements Iterable<Map.Entry<K, V>> {
+
+    private static final int DELTA = 3;
+    private static final int RATIO = 2;
+
+    static final class Node<K, V> implements Map.Entry<K, V> {
+        final K key;
+        final V value;
+        final Node<K, V> left;
+        final Node<K, V> right;
+        final int size;
+
+        Node(K key, V value, Node<K, V> left, Node<K, V> right) {
+            this.key = key;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            this.size = size(left) + size(right) + 1;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private final Comparator<? super K> comparator;
+    private final Node<K, V> root;
+
+    private PersistentTreeMap(Comparator<? super K> comparator, Node<K, V> root) {
+        this.comparator = comparator;
+        this.root = root;
+    }
+
+    static <K, V> PersistentTreeMap<K, V> empty(Comparator<? super K> comparator) {
+        return new PersistentTreeMap<>(comparator, null);
+    }
+
+    static <K extends Comparable<? super K>, V> PersistentTreeMap<K, V> empty() {
+        return new PersistentTreeMap<>(Comparator.<K>naturalOrder(), null);
+    }
+
+    /**
+     * Builds a perfectly balanced map in linear time from entries already sorted by key.
+     */
+    static <K, V> PersistentTreeMap<K, V> fromSorted(Comparator<? super K> comparator, List<? extends Map.Entry<K, V>> entries) {
+        return new PersistentTreeMap<>(comparator, build(entries, 0, entries.size()));
+    }
+
+    private static <K, V> Node<K, V> build(List<? extends Map.Entry<K, V>> entries, int from, int to) {
+        if (from >= to) {
+            return null;
+        }
+        int mid = (from + to) >>> 1;
+        Map.Entry<K, V> entry = entries.get(mid);
+        return new Node<>(entry.getKey(), entry.getValue(), build(entries, from, mid), build(entries, mid + 1, to));
+    }
+
+    private static int size(Node<?, ?> node) {
+        return node == null ? 0 : node.size;
+    }
+
+    int size() {
+        return size(root);
+    }
+
+    boolean isEmpty() {
+        return root == null;
+    }
+
+    V get(K key) {
+        Node<K, V> node = root;
+        while (node != null) {
+            int c = comparator.compare(key, node.key);
+            if (c == 0) {
+                return node.value;
+            }
+            node = c < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    K lastKey() {
+        Node<K, V> node = root;
+        if (node == null) {
+            return null;
+        }
+        while (node.right != null) {
+            node = node.right;
+        }
+        return node.key;
+    }
+
+    PersistentTreeMap<K, V> put(K key, V value) {
+        return new PersistentTreeMap<>(comparator, insert(root, key, value));
+    }
+
+    PersistentTreeMap<K, V> remove(K key) {
+        Node<K, V> newRoot = delete(root, key);
+        return newRoot == root ? this : new PersistentTreeMap<>(comparator, newRoot);
+    }
+
+    private Node<K, V> insert(Node<K, V> node, K key, V value) {
+        if (node == null) {
+            return new Node<>(key, value, null, null);
+        }
+        int c = comparator.compare(key, node.key);
+        if (c < 0) {
+            return balance(node.key, node.value, insert(node.left, key, value), node.right);
+        } else if (c > 0) {
+            return balance(node.key, node.value, node.left, insert(node.right, key, value));
+        }
+        return new Node<>(key, value, node.left, node.right);
+    }
+
+    private Node<K, V> delete(Node<K, V> node, K key) {
+        if (node == null) {
+            return null;
+        }
+        int c = comparator.compare(key, node.key);
+        if (c < 0) {
+            Node<K, V> left = delete(node.left, key);
+            return left == node.left ? node : balance(node.key, node.value, left, node.right);
+        } else if (c > 0) {
+            Node<K, V> right = delete(node.right, key);
+            return right == node.right ? node : balance(node.key, node.value, node.left, right);
+        }
+        return glue(node.left, node.right);
+    }
+
+    private Node<K, V> glue(Node<K, V> left, Node<K, V> right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.size > right.size) {
+            Node<K, V> max = left;
+            while (max.right != null) {
+                max = max.right;
+            }
+            return balance(max.key, max.value, delete(left, max.key), right);
+        }
+        Node<K, V> min = right;
+        while (min.left != null) {
+            min = min.left;
+        }
+        return balance(min.key, min.value, left, delete(right, min.key));
+    }
+
+    private static <K, V> Node<K, V> balance(K key, V value, Node<K, V> left, Node<K, V> right) {
+        int sl = size(left);
+        int sr = size(right);
+        if (sl + sr <= 1) {
+            return new Node<>(key, value, left, right);
+        }
+        if (sr > DELTA * sl) {
+            if (size(right.left) < RATIO * size(right.right)) {
+                return new Node<>(right.key, right.value, new Node<>(key, value, left, right.left), right.right);
+            }
+            Node<K, V> rl = right.left;
+            return new Node<>(rl.key, rl.value,
+                    new Node<>(key, value, left, rl.left),
+                    new Node<>(right.key, right.value, rl.right, right.right));
+        }
+        if (sl > DELTA * sr) {
+            if (size(left.right) < RATIO * size(left.left)) {
+                return new Node<>(left.key, left.value, left.left, new Node<>(key, value, left.right, right));
+            }
+            Node<K, V> lr = left.right;
+            return new Node<>(lr.key, lr.value,
+                    new Node<>(left.key, left.value, left.left, lr.left),
+                    new Node<>(key, value, lr.right, right));
+        }
+        return new Node<>(key, value, left, right);
+    }
+
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+        return new RangeIterator(null, null);
+    }
+
+    /**
+     * Entries with {@code from <= key < to} in key order; a {@code null} bound is unbounded.
+     */
+    Iterable<Map.Entry<K, V>> range(K from, K to) {
+        return () -> new RangeIterator(from, to);
+    }
+
+    private final class RangeIterator implements Iterator<Map.Entry<K, V>> {
+        private final Deque<Node<K, V>> stack = new ArrayDeque<>();
+        private final K to;
+
+        RangeIterator(K from, K to) {
+            this.to = to;
+            Node<K, V> node = root;
+            while (node != null) {
+                if (from == null || comparator.compare(node.key, from) >= 0) {
+                    stack.push(node);
+                    node = node.left;
+                } else {
+                    node = node.right;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !stack.isEmpty() && (to == null || comparator.compare(stack.peek().key, to) < 0);
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Node<K, V> node = stack.pop();
+            Node<K, V> next = node.right;
+            while (next != null) {
+                stack.push(next);
+                next = next.left;
+            }
+            return node;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package server;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+class PoolScheduler implements RequestScheduler {
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong rejected = new AtomicLong();
+
+    PoolScheduler(int workers, int queueCapacity) {
+        executor = new ThreadPoolExecutor(
+                workers, workers,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @Override
+    public boolean trySubmit(Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    @Override
+    public int queueDepth() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public int active() {
+        return executor.getActiveCount();
+    }
+
+    @Override
+    public long rejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "pool of " + executor.getMaximumPoolSize() + " workers, queue capacity "
+                + (executor.getQueue().size() + executor.getQueue().remainingCapacity());
+    }
+}
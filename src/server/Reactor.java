@@ -0,0 +1,219 @@
+package server;
+
+import message.Codec;
+import message.Request;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class Reactor implements Runnable {
+
+    private static final long STALL_CHECK_MS = 1000;
+
+    private final Server server;
+    private final BufferPool pool;
+    private final int maxFrame;
+    private final Selector selector;
+    private final Queue<SocketChannel> incoming = new ConcurrentLinkedQueue<>();
+    private final Queue<SelectionKey> resumed = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile boolean running = true;
+    private long lastStallCheck = System.nanoTime();
+
+    Reactor(Server server, BufferPool pool, int maxFrame) throws IOException {
+        this.server = server;
+        this.pool = pool;
+        this.maxFrame = maxFrame;
+        selector = Selector.open();
+    }
+
+    int connections() {
+        return connections.get();
+    }
+
+    void register(SocketChannel client) {
+        connections.incrementAndGet();
+        incoming.add(client);
+        selector.wakeup();
+    }
+
+    void resume(SelectionKey key) {
+        resumed.add(key);
+        selector.wakeup();
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select(STALL_CHECK_MS);
+                registerIncoming();
+                resumeKeys();
+                if (System.nanoTime() - lastStallCheck > TimeUnit.MILLISECONDS.toNanos(STALL_CHECK_MS)) {
+                    lastStallCheck = System.nanoTime();
+                    closeStalled();
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    // a failure on one connection must never take the other connections of this reactor down
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            read(key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(key);
+                        }
+                    } catch (RuntimeException e) {
+                        System.out.println("closing connection after error: " + e);
+                        close(key);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                System.out.println("reactor error: " + e);
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            close(key);
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void registerIncoming() {
+        SocketChannel client;
+        while ((client = incoming.poll()) != null) {
+            try {
+                client.configureBlocking(false);
+                ClientState state = new ClientState();
+                SelectionKey key = client.register(selector, SelectionKey.OP_READ, state);
+                state.key = key;
+                state.reactor = this;
+                state.decoder = new FrameDecoder(pool, maxFrame, frame -> decode(key, state, frame));
+            } catch (IOException e) {
+                connections.decrementAndGet();
+                try {
+                    client.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void resumeKeys() {
+        SelectionKey key;
+        while ((key = resumed.poll()) != null) {
+            if (!key.isValid()) {
+                continue;
+            }
+            ClientState state = (ClientState) key.attachment();
+            try {
+                synchronized (state) {
+                    if (state.pending != null || state.backlogged || state.throttled) {
+                        continue;
+                    }
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                    state.decoder.drain();
+                }
+            } catch (IOException | RuntimeException e) {
+                close(key);
+            }
+        }
+    }
+
+    private void close(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        key.cancel();
+        ClientState state = (ClientState) key.attachment();
+        state.decoder.release();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+        connections.decrementAndGet();
+        // a paused scan has to learn that its client is gone to let go of what it holds
+        Runnable resume = state.drained();
+        if (resume != null) {
+            resume.run();
+        }
+    }
+
+    private void closeStalled() {
+        long now = System.nanoTime();
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid() && ((ClientState) key.attachment()).stalled(now)) {
+                System.out.println("closing a connection that stopped reading its responses");
+                close(key);
+            }
+        }
+    }
+
+    private void read(SelectionKey key) {
+        SocketChannel client = (SocketChannel) key.channel();
+        ClientState state = (ClientState) key.attachment();
+        try {
+            synchronized (state) {
+                if (!state.decoder.read(client)) {
+                    close(key);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            close(key);
+        }
+    }
+
+    private boolean decode(SelectionKey key, ClientState state, ByteBuffer frame) throws IOException {
+        Request request = Codec.readRequest(frame);
+        request.state = new RequestState(request.id, state);
+        return server.dispatch(key, request);
+    }
+
+    private void write(SelectionKey key) {
+        ClientState state = (ClientState) key.attachment();
+        SocketChannel client = (SocketChannel) key.channel();
+        try {
+            ByteBuffer buffer;
+            while ((buffer = state.outQueue.peek()) != null) {
+                client.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return;
+                }
+                state.outQueue.poll();
+                if (state.sent(buffer)) {
+                    resume(key);
+                }
+                Runnable resume = state.drained();
+                if (resume != null) {
+                    resume.run();
+                }
+            }
+            synchronized (state) {
+                if (state.outQueue.isEmpty()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+            }
+        } catch (IOException e) {
+            close(key);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package server;
+
+import marine.SpaceMarine;
+import message.Codec;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Follows a primary's {@link ReplicationServer}, applying its log to the local store in order.
+ * After a lost connection it asks for the tail after the last applied entry, so a short outage
+ * does not cost a full snapshot.
+ */
+class Replica implements Runnable {
+
+    private final DatabaseManager manager;
+    private final String host;
+    private final int port;
+    private final String secret;
+    private final CountDownLatch ready = new CountDownLatch(1);
+
+    private Socket socket;
+    private volatile boolean running = true;
+    private long epoch = 0;
+    private volatile long applied = -1;
+    private volatile long primaryHead = -1;
+    private volatile long lastContact = 0;
+    private byte[] payload = new byte[64 * 1024];
+
+    Replica(DatabaseManager manager, String primary, String secret) {
+        this.manager = manager;
+        this.secret = secret;
+        int colon = primary.lastIndexOf(':');
+        host = primary.substring(0, colon);
+        port = Integer.parseInt(primary.substring(colon + 1));
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+
+    void start() {
+        Thread thread = new Thread(this, "replica");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Blocks until the first snapshot has been applied, so the server never answers from an empty store.
+     */
+    void awaitReady() throws InterruptedException {
+        ready.await();
+    }
+
+    void shutdown() {
+        running = false;
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    void printStats() {
+        long head = primaryHead;
+        long contact = lastContact;
+        System.out.println("replica of " + this + ": applied up to " + applied + " of " + head
+                + (head < 0 ? "" : " (" + Math.max(0, head - applied) + " entries behind)")
+                + (contact == 0 ? "" : ", last heard from primary " + (System.currentTimeMillis() - contact) + " ms ago"));
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                socket = new Socket(host, port);
+                follow();
+            } catch (IOException | IllegalArgumentException e) {
+                if (running) {
+                    System.out.println("lost primary " + this + ": " + e.getMessage());
+                }
+            } finally {
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void follow() throws IOException {
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeUTF(secret);
+        out.writeLong(epoch);
+        out.writeLong(applied);
+        out.flush();
+        while (running) {
+            ByteBuffer frame = read(in);
+            byte type = frame.get();
+            if (type == ReplicationServer.HEARTBEAT) {
+                primaryHead = frame.getLong();
+                lastContact = System.currentTimeMillis();
+            } else if (type == ReplicationServer.SNAPSHOT) {
+                catchUp(in, frame);
+            } else {
+                long seq = frame.getLong();
+                if (type == ReplicationLog.PUT) {
+                    long key = Codec.readVarLong(frame);
+                    manager.replicaPut(key, Codec.readMarine(frame));
+                } else if (type == ReplicationLog.REMOVE) {
+                    manager.replicaRemove(Codec.readVarLong(frame));
+                } else if (type == ReplicationLog.USER) {
+                    manager.replicaUser(Codec.readString(frame), Codec.readString(frame));
+                } else {
+                    throw new IOException("unknown replication frame " + type);
+                }
+                applied = seq;
+            }
+        }
+    }
+
+    private void catchUp(DataInputStream in, ByteBuffer header) throws IOException {
+        long start = System.nanoTime();
+        long newEpoch = header.getLong();
+        long seq = header.getLong();
+        int userCount = (int) Codec.readVarLong(header);
+        Map<String, String> users = new HashMap<>(userCount * 4 / 3 + 1);
+        for (int i = 0; i < userCount; i++) {
+            users.put(Codec.readString(header), Codec.readString(header));
+        }
+        int marineCount = (int) Codec.readVarLong(header);
+        List<Map.Entry<Long, SpaceMarine>> marines = new ArrayList<>(marineCount);
+        for (int i = 0; i < marineCount; i++) {
+            ByteBuffer frame = read(in);
+            if (frame.get() != ReplicationServer.MARINE) {
+                throw new IOException("snapshot cut short");
+            }
+            long key = Codec.readVarLong(frame);
+            marines.add(new AbstractMap.SimpleImmutableEntry<>(key, Codec.readMarine(frame)));
+        }
+        manager.replicaReset(users, marines);
+        epoch = newEpoch;
+        applied = seq;
+        ready.countDown();
+        long millis = (System.nanoTime() - start) / 1000000;
+        System.out.println("caught up with " + this + " from a snapshot of " + marineCount + " marines in "
+                + millis + " ms");
+    }
+
+    private ByteBuffer read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length <= 0) {
+            throw new IOException("bad replication frame length " + length);
+        }
+        if (length > payload.length) {
+            payload = new byte[Math.max(length, payload.length * 2)];
+        }
+        in.readFully(payload, 0, length);
+        return ByteBuffer.wrap(payload, 0, length);
+    }
+}
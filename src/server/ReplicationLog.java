@@ -0,0 +1,125 @@
+package server;
+
+import marine.SpaceMarine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Ordered record of the in-memory changes a primary has applied, kept in a fixed-size ring so
+ * replicas that fall behind by less than the ring can catch up from the tail. Sequence numbers
+ * only mean something within one epoch, which is picked anew every time the primary starts.
+ */
+class ReplicationLog {
+
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+    static final byte USER = 3;
+
+    private static final int MAX_BATCH = 1024;
+
+    static final class Entry {
+        final long seq;
+        final byte op;
+        final long key;
+        final SpaceMarine marine;
+        final String name;
+        final String hash;
+
+        private Entry(long seq, byte op, long key, SpaceMarine marine, String name, String hash) {
+            this.seq = seq;
+            this.op = op;
+            this.key = key;
+            this.marine = marine;
+            this.name = name;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * The full state of the primary as of one log position.
+     */
+    static final class Capture {
+        final long seq;
+        final Map<String, String> users;
+        final MarineStore.Snapshot marines;
+
+        Capture(long seq, Map<String, String> users, MarineStore.Snapshot marines) {
+            this.seq = seq;
+            this.users = users;
+            this.marines = marines;
+        }
+    }
+
+    private final long epoch = new Random().nextLong() | 1;
+    private final Entry[] ring;
+    private long head = 0;
+    private long base = 1;
+
+    ReplicationLog(int capacity) {
+        ring = new Entry[Math.max(1, capacity)];
+    }
+
+    long epoch() {
+        return epoch;
+    }
+
+    synchronized long head() {
+        return head;
+    }
+
+    synchronized void put(long key, SpaceMarine marine) {
+        append(new Entry(head + 1, PUT, key, marine, null, null));
+    }
+
+    synchronized void remove(long key) {
+        append(new Entry(head + 1, REMOVE, key, null, null, null));
+    }
+
+    synchronized void user(String name, String hash) {
+        append(new Entry(head + 1, USER, 0, null, name, hash));
+    }
+
+    private void append(Entry entry) {
+        head = entry.seq;
+        ring[(int) (head % ring.length)] = entry;
+        if (head - base >= ring.length) {
+            base = head - ring.length + 1;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Invalidates every position handed out so far, for when memory was replaced wholesale.
+     */
+    synchronized void reset() {
+        head++;
+        base = head + 1;
+        notifyAll();
+    }
+
+    /**
+     * Returns the entries after {@code seq}, waiting up to {@code millis} if there are none yet, or
+     * null if they are no longer retained and the replica has to start over from a capture.
+     */
+    synchronized List<Entry> after(long seq, long millis) throws InterruptedException {
+        if (seq == head) {
+            wait(millis);
+        }
+        if (seq < base - 1 || seq > head) {
+            return null;
+        }
+        if (seq == head) {
+            return Collections.emptyList();
+        }
+        long last = Math.min(head, seq + MAX_BATCH);
+        List<Entry> entries = new ArrayList<>((int) (last - seq));
+        for (long s = seq + 1; s <= last; s++) {
+            entries.add(ring[(int) (s % ring.length)]);
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,204 @@
+package server;
+
+import marine.SpaceMarine;
+import message.Codec;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ships the replication log to read replicas, one thread per replica. A replica opens with the
+ * shared secret and the epoch and position it has applied; if that tail is still in the log it
+ * gets only the entries after it, otherwise a full capture followed by the tail.
+ * <p>
+ * Frames are a length-prefixed payload starting with a type byte. Besides the log entries there
+ * are {@link #SNAPSHOT} headers followed by one {@link #MARINE} frame per marine in key order, and
+ * {@link #HEARTBEAT}s carrying the head of the log so replicas can tell how far behind they are.
+ */
+class ReplicationServer implements Runnable {
+
+    static final byte SNAPSHOT = 4;
+    static final byte MARINE = 5;
+    static final byte HEARTBEAT = 6;
+
+    private static final long HEARTBEAT_MS = 1000;
+    private static final int HANDSHAKE_MS = 10000;
+
+    private interface Record {
+        void write(ByteBuffer out);
+    }
+
+    private final DatabaseManager manager;
+    private final ReplicationLog log;
+    private final ServerSocket serverSocket;
+    private final byte[] secret;
+    private final Set<Shipper> replicas = ConcurrentHashMap.newKeySet();
+
+    ReplicationServer(DatabaseManager manager, ReplicationLog log, InetSocketAddress address, String secret)
+            throws IOException {
+        this.manager = manager;
+        this.log = log;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        serverSocket = new ServerSocket();
+        serverSocket.bind(address);
+    }
+
+    void start() {
+        Thread thread = new Thread(this, "replication");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void shutdown() {
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+        }
+        for (Shipper replica : replicas) {
+            replica.close();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Shipper replica = new Shipper(serverSocket.accept());
+                replicas.add(replica);
+                Thread thread = new Thread(replica, "replication-" + replica.socket.getRemoteSocketAddress());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.out.println("replication accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    void printStats() {
+        long head = log.head();
+        System.out.println("replication log head: " + head + ", replicas: " + replicas.size());
+        for (Shipper replica : replicas) {
+            long sent = replica.sent;
+            System.out.println("replica " + replica.socket.getRemoteSocketAddress() + ": sent up to " + sent
+                    + (sent < 0 ? ", sending snapshot" : ", " + (head - sent) + " entries behind"));
+        }
+    }
+
+    private class Shipper implements Runnable {
+
+        final Socket socket;
+        volatile long sent = -1;
+        private DataOutputStream out;
+        private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        Shipper(Socket socket) {
+            this.socket = socket;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                socket.setSoTimeout(HANDSHAKE_MS);
+                if (!MessageDigest.isEqual(secret, in.readUTF().getBytes(StandardCharsets.UTF_8))) {
+                    System.out.println("replica " + socket.getRemoteSocketAddress() + " sent a wrong secret");
+                    return;
+                }
+                long epoch = in.readLong();
+                long applied = in.readLong();
+                socket.setSoTimeout(0);
+                sent = epoch == log.epoch() ? applied : -1;
+                while (true) {
+                    List<ReplicationLog.Entry> entries = sent < 0 ? null : log.after(sent, HEARTBEAT_MS);
+                    if (entries == null) {
+                        sendCapture();
+                        continue;
+                    }
+                    for (ReplicationLog.Entry entry : entries) {
+                        frame(o -> writeEntry(o, entry));
+                        sent = entry.seq;
+                    }
+                    long head = log.head();
+                    frame(o -> o.put(HEARTBEAT).putLong(head).putLong(System.currentTimeMillis()));
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                System.out.println("replica " + socket.getRemoteSocketAddress() + " disconnected");
+            } finally {
+                replicas.remove(this);
+                close();
+            }
+        }
+
+        private void sendCapture() throws IOException {
+            sent = -1;
+            ReplicationLog.Capture capture = manager.replicationCapture();
+            frame(o -> {
+                o.put(SNAPSHOT).putLong(log.epoch()).putLong(capture.seq);
+                Codec.writeVarLong(o, capture.users.size());
+                for (Map.Entry<String, String> user : capture.users.entrySet()) {
+                    Codec.writeString(o, user.getKey());
+                    Codec.writeString(o, user.getValue());
+                }
+                Codec.writeVarLong(o, capture.marines.size());
+            });
+            for (Map.Entry<Long, SpaceMarine> entry : capture.marines.marines) {
+                frame(o -> {
+                    o.put(MARINE);
+                    Codec.writeVarLong(o, entry.getKey());
+                    Codec.writeMarine(o, entry.getValue());
+                });
+            }
+            out.flush();
+            sent = capture.seq;
+        }
+
+        private void writeEntry(ByteBuffer o, ReplicationLog.Entry entry) {
+            o.put(entry.op).putLong(entry.seq);
+            if (entry.op == ReplicationLog.USER) {
+                Codec.writeString(o, entry.name);
+                Codec.writeString(o, entry.hash);
+            } else {
+                Codec.writeVarLong(o, entry.key);
+                if (entry.op == ReplicationLog.PUT) {
+                    Codec.writeMarine(o, entry.marine);
+                }
+            }
+        }
+
+        private void frame(Record record) throws IOException {
+            while (true) {
+                buffer.clear();
+                try {
+                    record.write(buffer);
+                    break;
+                } catch (BufferOverflowException e) {
+                    buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                }
+            }
+            out.writeInt(buffer.position());
+            out.write(buffer.array(), 0, buffer.position());
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package server;
+
+interface RequestScheduler {
+
+    boolean trySubmit(Runnable task);
+
+    int queueDepth();
+
+    int active();
+
+    long rejected();
+
+    void shutdown();
+
+    static RequestScheduler fromEnv() {
+        String mode = Settings.stringEnv("LAB7_SCHEDULER", "pool");
+        if (mode.equals("thread")) {
+            return new ThreadScheduler(Settings.intEnv("LAB7_MAX_IN_FLIGHT", 1024));
+        }
+        if (!mode.equals("pool")) {
+            System.out.println("unknown LAB7_SCHEDULER " + mode + ", using pool");
+        }
+        return new PoolScheduler(
+                Settings.intEnv("LAB7_WORKERS", Runtime.getRuntime().availableProcessors() * 2),
+                Settings.intEnv("LAB7_QUEUE", 1024));
+    }
+}
@@ -0,0 +1,61 @@
+package server;
+
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.CompletableFuture;
+
+public class RequestState {
+    final int id;
+    final ClientState client;
+    boolean success = true;
+    private final ResponseStream stream;
+    final PrintStream out;
+    private CompletableFuture<?> pending;
+
+    RequestState(int id, ClientState client) {
+        this.id = id;
+        this.client = client;
+        stream = new ResponseStream(id, client);
+        try {
+            out = new PrintStream(stream, false, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Defers finishing the response until {@code work} completes, instead of when the handler returns.
+     */
+    synchronized void await(CompletableFuture<?> work) {
+        pending = work;
+    }
+
+    synchronized CompletableFuture<?> completion() {
+        return pending == null ? CompletableFuture.completedFuture(null) : pending;
+    }
+
+    /**
+     * Runs a handler that may {@link #await} on its own and returns what it left to wait for, without
+     * touching what the request as a whole is waiting on. For handlers chained after other work.
+     */
+    synchronized CompletableFuture<?> then(Runnable handler) {
+        CompletableFuture<?> outer = pending;
+        pending = null;
+        try {
+            handler.run();
+            return completion();
+        } finally {
+            pending = outer;
+        }
+    }
+
+    void sendToken(long token) {
+        out.flush();
+        stream.token(token);
+    }
+
+    void finish() {
+        out.flush();
+        stream.finish(success);
+    }
+}
@@ -0,0 +1,69 @@
+package server;
+
+import message.ResponseFrame;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+class ResponseStream extends OutputStream {
+
+    private final int id;
+    private final ClientState client;
+    private final byte[] buffer = new byte[ResponseFrame.MAX_PAYLOAD];
+    private int count = 0;
+
+    ResponseStream(int id, ClientState client) {
+        this.id = id;
+        this.client = client;
+    }
+
+    @Override
+    public void write(int b) {
+        if (count == buffer.length) {
+            emit(ResponseFrame.CHUNK);
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            if (count == buffer.length) {
+                emit(ResponseFrame.CHUNK);
+            }
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    void token(long token) {
+        if (count > 0) {
+            emit(ResponseFrame.CHUNK);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(ResponseFrame.HEADER_SIZE + 8);
+        frame.putInt(id);
+        frame.put(ResponseFrame.TOKEN);
+        frame.putShort((short) 8);
+        frame.putLong(token);
+        frame.flip();
+        client.send(frame);
+    }
+
+    void finish(boolean success) {
+        emit(success ? ResponseFrame.DONE : ResponseFrame.FAILED);
+    }
+
+    private void emit(byte kind) {
+        ByteBuffer frame = ByteBuffer.allocate(ResponseFrame.HEADER_SIZE + count);
+        frame.putInt(id);
+        frame.put(kind);
+        frame.putShort((short) count);
+        frame.put(buffer, 0, count);
+        frame.flip();
+        count = 0;
+        client.send(frame);
+    }
+}
@@ -5,88 +5,19 @@ import message.*;
 
 import java.io.*;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
+import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.function.Consumer;
+import java.util.function.LongPredicate;
 
 public class Server {
 
-    class InputAction extends RecursiveAction {
-
-        private final List<SelectionKey> keys;
-        private static final int threshold = 2;
-
-        InputAction(List<SelectionKey> keys) {
-            this.keys = keys;
-        }
-
-        private List<InputAction> subtasks() {
-            List<InputAction> divided = new ArrayList<>();
-            divided.add(new InputAction(keys.subList(0, keys.size()/2)));
-            divided.add(new InputAction(keys.subList(keys.size()/2, keys.size())));
-            return divided;
-        }
-
-        private void process() {
-            ByteBuffer intBuffer = ByteBuffer.allocate(4);
-            keys.forEach(key -> {
-                try {
-                    SocketChannel client = (SocketChannel) key.channel();
-                    ClientState state = (ClientState) key.attachment();
-
-                    synchronized (state) {
-                        if (state.toRead == -1) {
-                            int r = client.read(intBuffer);
-                            if (r == -1) {
-                                client.close();
-                                return;
-                            }
-                            intBuffer.flip();
-                            state.toRead = intBuffer.getInt();
-                            state.inBuffer = ByteBuffer.allocate(state.toRead);
-                        } else {
-                            client.read(state.inBuffer);
-                            if (state.inBuffer.position() == state.toRead) {
-                                state.inBuffer.flip();
-                                ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(state.inBuffer.array()));
-                                state.toRead = -1;
-                                Request request = (Request) ois.readObject();
-                                request.state = state;
-                                Thread thread = new Thread(() -> {
-                                    request.handle(Server.this);
-                                    state.out.flush();
-                                    state.messageReady = true;
-                                });
-                                thread.start();
-                            }
-                        }
-                    }
-                } catch (IOException | ClassNotFoundException ignored) {
-
-                } finally {
-                    intBuffer.clear();
-                }
-            });
-        }
-
-        @Override
-        protected void compute() {
-            if (keys.size() > threshold) {
-                ForkJoinTask.invokeAll(subtasks());
-            } else {
-                process();
-            }
-        }
-    }
-
     private final Selector selector;
     private final DatabaseManager manager;
 
@@ -94,12 +25,19 @@ public class Server {
 
     private static final DateTimeFormatter dateFormatter = DateTimeFormatter.ISO_DATE;
 
-    private final ForkJoinPool inPool = ForkJoinPool.commonPool();
-    private final Executor outExecutor = Executors.newFixedThreadPool(5);
+    private final RequestScheduler scheduler;
+    private final Reactor[] reactors;
+    private final BufferPool pool;
+    private final SessionManager sessions;
+    private final ShardMap shards;
+    private int nextReactor = 0;
+    private final Deque<SelectionKey> paused = new ConcurrentLinkedDeque<>();
+    // requests a connection may have queued behind its running one before reading from it stops
+    private static final int MAX_WAITING = 256;
 
     public static void main(String[] args) {
         try {
-            Server server = new Server(3345);
+            Server server = new Server(Settings.intEnv("LAB7_PORT", 3345));
             server.work();
         } catch (SQLException e) {
             System.out.println("sql error, check config variables");
@@ -123,7 +61,193 @@ public class Server {
         String user = System.getenv("LAB7_USER");
         String password = System.getenv("LAB7_PASSWORD");
 
-        manager = new DatabaseManager(url, user, password);
+        shards = ShardMap.parse(Settings.stringEnv("LAB7_SHARDS", null));
+        LongPredicate owns = null;
+        if (shards != null) {
+            int shard = Settings.intEnv("LAB7_SHARD", 0);
+            System.out.println("shard " + shard + " of " + shards.size());
+            owns = key -> shards.owner(key) == shard;
+        }
+        String primary = Settings.stringEnv("LAB7_PRIMARY", null);
+        if (primary != null) {
+            String secret = Settings.stringEnv("LAB7_REPLICATION_SECRET", null);
+            if (secret == null) {
+                throw new IOException("LAB7_REPLICATION_SECRET must be set to follow a primary");
+            }
+            try {
+                manager = new DatabaseManager(primary, secret);
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted while waiting for the primary");
+            }
+        } else {
+            manager = new DatabaseManager(url, user, password, Settings.intEnv("LAB7_DB_POOL", 8), owns);
+        }
+
+        sessions = new SessionManager(Settings.intEnv("LAB7_SESSION_TTL", 30 * 60) * 1000L);
+
+        scheduler = RequestScheduler.fromEnv();
+        System.out.println("scheduler: " + scheduler);
+
+        int maxFrame = Settings.intEnv("LAB7_MAX_FRAME", 1024 * 1024);
+        pool = new BufferPool(maxFrame, Settings.intEnv("LAB7_POOLED_BUFFERS", 64));
+        reactors = new Reactor[Math.max(1, Settings.intEnv("LAB7_REACTORS", Runtime.getRuntime().availableProcessors()))];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(this, pool, maxFrame);
+            Thread thread = new Thread(reactors[i], "reactor-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        System.out.println("reactors: " + reactors.length);
+    }
+
+    private Reactor leastLoaded() {
+        Reactor best = reactors[nextReactor];
+        for (int i = 1; i < reactors.length; i++) {
+            Reactor reactor = reactors[(nextReactor + i) % reactors.length];
+            if (reactor.connections() < best.connections()) {
+                best = reactor;
+            }
+        }
+        nextReactor = (nextReactor + 1) % reactors.length;
+        return best;
+    }
+
+    /**
+     * Accepts a decoded request. Responses are pipelined, but a connection's requests run strictly one
+     * after another, so a script's commands see each other's effects just as if sent one at a time.
+     * Returns false when reading from the connection should stop for now.
+     */
+    boolean dispatch(SelectionKey key, Request request) {
+        ClientState state = (ClientState) key.attachment();
+        Runnable task = () -> {
+            try {
+                request.handle(this);
+            } finally {
+                request.state.completion().whenComplete((result, error) -> {
+                    try {
+                        // success=false tells the client its credentials were refused, so failures
+                        // of the work itself are answered like any other manager answer
+                        if (error != null) {
+                            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                            handleManagerAnswer(request.state, cause instanceof RejectedExecutionException
+                                    ? ManagerAnswer.BUSY : ManagerAnswer.DB_ERROR);
+                        }
+                        request.state.finish();
+                    } finally {
+                        runNext(key, state);
+                        resumePaused();
+                    }
+                });
+            }
+        };
+        synchronized (state) {
+            if (state.busy) {
+                state.waiting.addLast(task);
+                if (state.waiting.size() < MAX_WAITING) {
+                    return true;
+                }
+                state.backlogged = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                return false;
+            }
+            state.busy = true;
+        }
+        return submit(key, task);
+    }
+
+    private boolean submit(SelectionKey key, Runnable task) {
+        if (!scheduler.trySubmit(task)) {
+            pause(key, task);
+            return false;
+        }
+        return true;
+    }
+
+    private void runNext(SelectionKey key, ClientState state) {
+        Runnable next;
+        boolean resume = false;
+        synchronized (state) {
+            next = state.waiting.pollFirst();
+            if (next == null) {
+                state.busy = false;
+            }
+            if (state.backlogged && state.waiting.size() < MAX_WAITING / 2) {
+                state.backlogged = false;
+                resume = true;
+            }
+        }
+        if (resume) {
+            state.reactor.resume(key);
+        }
+        if (next != null && key.isValid()) {
+            submit(key, next);
+        }
+    }
+
+    private void pause(SelectionKey key, Runnable task) {
+        ClientState state = (ClientState) key.attachment();
+        state.pending = task;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        paused.addLast(key);
+        resumePaused();
+    }
+
+    private void resumePaused() {
+        SelectionKey key;
+        while ((key = paused.pollFirst()) != null) {
+            ClientState state = (ClientState) key.attachment();
+            synchronized (state) {
+                if (!key.isValid()) {
+                    state.pending = null;
+                    continue;
+                }
+                if (!scheduler.trySubmit(state.pending)) {
+                    paused.addFirst(key);
+                    return;
+                }
+                state.pending = null;
+            }
+            state.reactor.resume(key);
+        }
+    }
+
+    private void printStats() {
+        System.out.println("queued requests: " + scheduler.queueDepth());
+        System.out.println("running requests: " + scheduler.active());
+        System.out.println("rejected submissions: " + scheduler.rejected());
+        System.out.println("paused connections: " + paused.size());
+        System.out.println("pooled receive buffers: " + pool.pooled());
+        sessions.purgeExpired();
+        System.out.println("open sessions: " + sessions.size());
+        if (manager.poolSize() > 0) {
+            System.out.println("idle database connections: " + manager.idleConnections() + "/" + manager.poolSize());
+        }
+        MarineCache cache = manager.cache();
+        if (cache != null) {
+            long hits = cache.hits();
+            long lookups = hits + cache.misses();
+            System.out.println("marine cache: " + cache.size() + " entries, " + cache.weight() / 1024 + "/"
+                    + cache.maxWeight() / 1024 + " KiB, hit rate " + (lookups == 0 ? 0 : hits * 100 / lookups)
+                    + "%, " + cache.evictions() + " evictions");
+        }
+        ReplicationServer replication = manager.replication();
+        if (replication != null) {
+            replication.printStats();
+        }
+        Replica replica = manager.replica();
+        if (replica != null) {
+            replica.printStats();
+        }
+        System.out.println("queued database tasks: " + manager.queuedDatabaseTasks()
+                + ", rejected: " + manager.rejectedDatabaseTasks());
+        GroupCommitter committer = manager.committer();
+        if (committer != null) {
+            System.out.println("group commits: " + committer.batches() + " batches, " + committer.writes()
+                    + " writes, " + committer.queued() + " queued");
+        }
+        for (int i = 0; i < reactors.length; i++) {
+            System.out.println("reactor " + i + " connections: " + reactors[i].connections());
+        }
     }
 
     private void work() throws IOException {
@@ -133,26 +257,34 @@ public class Server {
                 String[] args = line.split(" +");
                 if (args.length > 0) {
                     if (args[0].equals("exit")) {
+                        for (Reactor reactor : reactors) {
+                            reactor.shutdown();
+                        }
+                        scheduler.shutdown();
+                        manager.shutdown();
                         break;
                     } else if (args[0].equals("help")) {
                         System.out.println("exit to exit");
                         System.out.println("help for this message");
+                        System.out.println("stats for request scheduling stats");
+                        System.out.println("revoke user to end all sessions of a user");
+                    } else if (args[0].equals("stats")) {
+                        printStats();
+                    } else if (args[0].equals("revoke")) {
+                        if (args.length != 2) {
+                            System.out.println("revoke takes a username");
+                        } else {
+                            System.out.println("revoked " + sessions.revoke(args[1]) + " sessions");
+                        }
                     } else {
                         System.out.println("unknown command");
                     }
                 }
             }
 
-            int readyCount = selector.select();
-
-            if (readyCount == 0) {
-                continue;
-            }
-
-            List<SelectionKey> readable = new ArrayList<>();
+            selector.select(200);
 
-            Set<SelectionKey> keys = selector.selectedKeys();
-            Iterator<SelectionKey> it = keys.iterator();
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
             while (it.hasNext()) {
                 SelectionKey key = it.next();
                 it.remove();
@@ -160,52 +292,15 @@ public class Server {
                 if (key.isAcceptable()) {
                     ServerSocketChannel server = (ServerSocketChannel) key.channel();
                     SocketChannel client = server.accept();
-                    client.configureBlocking(false);
-                    SelectionKey clientKey = client.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-                    clientKey.attach(new ClientState());
-                }
-
-                if (key.isReadable()) {
-                    readable.add(key);
-                }
-
-                if (key.isWritable()) {
-                    outExecutor.execute(() -> {
-                        ClientState state = (ClientState) key.attachment();
-                        synchronized (state) {
-                            if (state.messageReady) {
-                                ByteBuffer boolBuffer = ByteBuffer.allocate(1);
-                                ByteBuffer shortBuffer = ByteBuffer.allocate(2);
-                                try {
-                                    SocketChannel client = (SocketChannel) key.channel();
-                                    boolBuffer.put((byte) (state.success ? 1 : 0));
-                                    boolBuffer.flip();
-                                    client.write(boolBuffer);
-                                    String message = state.baos.toString();
-                                    ByteBuffer bb = StandardCharsets.UTF_8.encode(message);
-                                    shortBuffer.putShort((short) bb.remaining());
-                                    shortBuffer.flip();
-                                    client.write(shortBuffer);
-                                    client.write(bb);
-                                } catch (IOException ignored) {
-                                } finally {
-                                    state.baos = new ByteArrayOutputStream();
-                                    state.out = new PrintStream(state.baos);
-                                    state.success = true;
-                                    state.messageReady = false;
-                                }
-                            }
-                        }
-                    });
+                    if (client != null) {
+                        leastLoaded().register(client);
+                    }
                 }
             }
-            if (!readable.isEmpty()) {
-                inPool.execute(new InputAction(readable));
-            }
         }
     }
-    
-    private void printMarine(ClientState state, Map.Entry<Long, SpaceMarine> entry) {
+
+    private void printMarine(RequestState state, Map.Entry<Long, SpaceMarine> entry) {
         Long key = entry.getKey();
         SpaceMarine marine = entry.getValue();
         state.out.println("Owner: " + marine.getOwner());
@@ -228,75 +323,156 @@ public class Server {
         }
     }
 
-    private static <T> void interDo(List<T> list, Consumer<T> doer, Runnable between) {
-        boolean fst = true;
-        for (T t : list) {
-            if (fst) {
-                fst = false;
+    private MarineSink marinePrinter(RequestState state) {
+        ClientState client = state.client;
+        return new MarineSink() {
+            private boolean fst = true;
+
+            @Override
+            public void accept(Map.Entry<Long, SpaceMarine> entry) {
+                if (fst) {
+                    fst = false;
+                } else {
+                    state.out.println();
+                }
+                printMarine(state, entry);
+            }
+
+            @Override
+            public boolean hasRoom() {
+                return client.hasRoom();
+            }
+
+            @Override
+            public boolean whenReady(Runnable resume) {
+                return client.whenDrained(resume);
             }
-            else {
-                between.run();
+
+            @Override
+            public boolean closed() {
+                return !client.key.isValid();
             }
-            doer.accept(t);
+        };
+    }
+
+    private CompletableFuture<String> authenticate(NormalRequest request) {
+        ClientState client = request.state.client;
+        Session session = client.session;
+        if (session != null && session.valid()) {
+            return CompletableFuture.completedFuture(session.user);
         }
+        if (request.token != 0) {
+            session = sessions.lookup(request.token);
+            if (session != null) {
+                client.session = session;
+                return CompletableFuture.completedFuture(session.user);
+            }
+        }
+        if (request.user == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return manager.validCreds(request.user, request.passHash).thenApply(valid -> valid ? request.user : null);
     }
 
-    private void printMarines(ClientState state, List<Map.Entry<Long, SpaceMarine>> entries) {
-        interDo(entries, m -> printMarine(state, m), state.out::println);
+    private void openSession(RequestState state, String user) {
+        Session session = sessions.open(user);
+        state.client.session = session;
+        state.sendToken(session.token);
     }
 
     public void handleNormalRequest(NormalRequest request) {
-        if (manager.validCreds(request.user, request.passHash)) {
-            request.command.state = request.state;
-            request.command.execute(this, request.user);
-        } else {
-            request.state.success = false;
-        }
+        RequestState state = request.state;
+        state.await(authenticate(request).thenCompose(user -> {
+            if (user == null) {
+                state.success = false;
+                return CompletableFuture.completedFuture(null);
+            }
+            request.command.state = state;
+            return state.then(() -> request.command.execute(this, user));
+        }));
     }
 
     public void handleTestRequest(TestRequest request) {
-        if (!manager.validCreds(request.user, request.passHash)) {
-            request.state.success = false;
+        request.state.await(manager.validCreds(request.user, request.passHash).thenAccept(valid -> {
+            if (valid) {
+                openSession(request.state, request.user);
+            } else {
+                request.state.success = false;
+            }
+        }));
+    }
+
+    public void handleShardMapRequest(ShardMapRequest request) {
+        if (shards != null) {
+            request.state.out.print(shards);
         }
     }
 
     public void handleRegisterRequest(RegisterRequest request) {
-        handleManagerAnswer(request.state, manager.addUser(request.user, request.passHash), "username taken");
+        request.state.await(manager.addUser(request.user, request.passHash).thenAccept(answer -> {
+            handleManagerAnswer(request.state, answer, "username taken");
+            if (answer == ManagerAnswer.OK) {
+                openSession(request.state, request.user);
+            }
+        }));
     }
 
-    public void executeClear(ClientState state, String currentUser) {
-        handleManagerAnswer(state, manager.clear(currentUser));
+    public void executeClear(RequestState state, String currentUser) {
+        answer(state, manager.clear(currentUser));
     }
     
     public void executeFilterGreaterThanCategory(FilterGreaterThanCategoryCommand command) {
-        printMarines(command.state, manager.filterGreaterThanCategory(command.category));
+        answer(command.state, manager.filterGreaterThanCategory(command.category, marinePrinter(command.state)));
     }
 
-    public void executeGroupCountingByCreationDate(ClientState state) {
-        manager.groupCountingByCreationDate().forEach(
-                (date, number) -> state.out.println(date.format(dateFormatter) + ": " + number));
+    public void executeFilter(FilterCommand command) {
+        answer(command.state, manager.filter(command.categoryAbove, command.weapon, command.meleeWeapon,
+                marinePrinter(command.state)));
     }
 
-    public void executeInfo(ClientState state) {
-        MarineInfo info = manager.info();
-        state.out.println("type: " + info.type);
-        state.out.println("number of elements: " + info.n);
-        if (info.lastCreatedDate != null) {
-            state.out.println("newest marine created on " + info.lastCreatedDate.format(dateFormatter));
-        }
+    public void executeGroupCountingByCreationDate(RequestState state) {
+        state.await(manager.groupCountingByCreationDate().thenAccept(counts -> {
+            if (counts == null) {
+                handleManagerAnswer(state, ManagerAnswer.DB_ERROR);
+                return;
+            }
+            counts.forEach(e -> state.out.println(e.getKey().format(dateFormatter) + ": " + e.getValue()));
+        }));
     }
 
-    private void handleManagerAnswer(ClientState state, ManagerAnswer answer, String errorMessage) {
+    public void executeInfo(RequestState state) {
+        state.await(manager.info().thenAccept(info -> {
+            if (info == null) {
+                handleManagerAnswer(state, ManagerAnswer.DB_ERROR);
+                return;
+            }
+            state.out.println("type: " + info.type);
+            state.out.println("number of elements: " + info.n);
+            if (info.lastCreatedDate != null) {
+                state.out.println("newest marine created on " + info.lastCreatedDate.format(dateFormatter));
+            }
+        }));
+    }
+
+    private void handleManagerAnswer(RequestState state, ManagerAnswer answer, String errorMessage) {
         if (answer == ManagerAnswer.BAD_OP) {
             state.out.println(errorMessage);
         } else if (answer == ManagerAnswer.BAD_OWNER) {
             state.out.println("can't modify someone else's marine");
         } else if (answer == ManagerAnswer.DB_ERROR) {
             state.out.println("database error");
+        } else if (answer == ManagerAnswer.WRONG_SHARD) {
+            state.out.println("key belongs to another shard");
+        } else if (answer == ManagerAnswer.READ_ONLY) {
+            state.out.println("this server is a read-only replica");
+        } else if (answer == ManagerAnswer.CONFLICT) {
+            state.out.println("the marine was changed at the same time, try again");
+        } else if (answer == ManagerAnswer.BUSY) {
+            state.out.println("the server is busy, try again later");
         }
     }
 
-    private void handleManagerAnswer(ClientState state, ManagerAnswer answer) {
+    private void handleManagerAnswer(RequestState state, ManagerAnswer answer) {
         if (answer == ManagerAnswer.BAD_OP) {
             state.out.println("impossible error");
         } else {
@@ -304,35 +480,51 @@ public class Server {
         }
     }
 
+    private void answer(RequestState state, CompletableFuture<ManagerAnswer> answer, String errorMessage) {
+        state.await(answer.thenAccept(a -> handleManagerAnswer(state, a, errorMessage)));
+    }
+
+    private void answer(RequestState state, CompletableFuture<ManagerAnswer> answer) {
+        state.await(answer.thenAccept(a -> handleManagerAnswer(state, a)));
+    }
+
     public void executeInsert(String currentUser, InsertCommand command) {
-        handleManagerAnswer(command.state, manager.insert(currentUser, command.key, command.marine), "key already present");
+        answer(command.state, manager.insert(currentUser, command.key, command.marine), "key already present");
     }
 
-    public void executePrintAscending(ClientState state) {
-        printMarines(state, manager.ascending());
+    public void executePrintAscending(RequestState state) {
+        answer(state, manager.ascending(marinePrinter(state)));
     }
 
     public void executeRemoveKey(String currentUser, RemoveKeyCommand command) {
-        handleManagerAnswer(command.state, manager.removeKey(currentUser, command.key), "key not found");
+        answer(command.state, manager.removeKey(currentUser, command.key), "key not found");
     }
 
     public void executeRemoveLower(String currentUser, RemoveLowerCommand command) {
-        handleManagerAnswer(command.state, manager.removeLower(currentUser, command.marine));
+        answer(command.state, manager.removeLower(currentUser, command.marine));
     }
 
     public void executeRemoveLowerKey(String currentUser, RemoveLowerKeyCommand command) {
-        handleManagerAnswer(command.state, manager.removeLowerKey(currentUser, command.key));
+        answer(command.state, manager.removeLowerKey(currentUser, command.key));
     }
 
     public void executeReplaceIfLower(String currentUser, ReplaceIfLowerCommand command) {
-        handleManagerAnswer(command.state, manager.replaceIfLower(currentUser, command.key, command.marine), "key not found");
+        answer(command.state, manager.replaceIfLower(currentUser, command.key, command.marine), "key not found");
+    }
+
+    public void executeShow(RequestState state) {
+        answer(state, manager.list(marinePrinter(state)));
+    }
+
+    public void executeShowMine(RequestState state, String currentUser) {
+        answer(state, manager.owned(currentUser, marinePrinter(state)));
     }
 
-    public void executeShow(ClientState state) {
-        printMarines(state, manager.list());
+    public void executeShowRange(ShowRangeCommand command) {
+        answer(command.state, manager.range(command.from, command.to, marinePrinter(command.state)));
     }
 
     public void executeUpdate(String currentUser, UpdateCommand command) {
-        handleManagerAnswer(command.state, manager.update(currentUser, command.id, command.marine), "id not found");
+        answer(command.state, manager.update(currentUser, command.id, command.marine), "id not found");
     }
 }
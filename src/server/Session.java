@@ -0,0 +1,33 @@
+package server;
+
+class Session {
+    final long token;
+    final String user;
+    private final long ttl;
+    private volatile long expiresAt;
+    private volatile boolean revoked = false;
+
+    Session(long token, String user, long ttl) {
+        this.token = token;
+        this.user = user;
+        this.ttl = ttl;
+        expiresAt = System.currentTimeMillis() + ttl;
+    }
+
+    boolean valid() {
+        long now = System.currentTimeMillis();
+        if (revoked || now >= expiresAt) {
+            return false;
+        }
+        expiresAt = now + ttl;
+        return true;
+    }
+
+    boolean expired() {
+        return revoked || System.currentTimeMillis() >= expiresAt;
+    }
+
+    void revoke() {
+        revoked = true;
+    }
+}
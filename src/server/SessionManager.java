@@ -0,0 +1,70 @@
+package server;
+
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+class SessionManager {
+
+    private static final int MIN_PURGE = 1024;
+
+    private final Map<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final long ttl;
+    // expired sessions are swept once the map has doubled since the last sweep, so a sweep costs
+    // constant time per login; lookups reject expired tokens meanwhile
+    private volatile int purgeAt = MIN_PURGE;
+
+    SessionManager(long ttl) {
+        this.ttl = ttl;
+    }
+
+    Session open(String user) {
+        if (sessions.size() >= purgeAt) {
+            purgeExpired();
+        }
+        while (true) {
+            long token = random.nextLong();
+            if (token == 0) {
+                continue;
+            }
+            Session session = new Session(token, user, ttl);
+            if (sessions.putIfAbsent(token, session) == null) {
+                return session;
+            }
+        }
+    }
+
+    Session lookup(long token) {
+        Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        if (!session.valid()) {
+            sessions.remove(token, session);
+            return null;
+        }
+        return session;
+    }
+
+    int revoke(String user) {
+        int n = 0;
+        for (Session session : sessions.values()) {
+            if (session.user.equals(user)) {
+                session.revoke();
+                sessions.remove(session.token, session);
+                n++;
+            }
+        }
+        return n;
+    }
+
+    void purgeExpired() {
+        sessions.values().removeIf(Session::expired);
+        purgeAt = Math.max(MIN_PURGE, 2 * sessions.size());
+    }
+
+    int size() {
+        return sessions.size();
+    }
+}
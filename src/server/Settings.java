@@ -0,0 +1,25 @@
+package server;
+
+class Settings {
+
+    static String stringEnv(String name, String defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    static int intEnv(String name, int defaultValue) {
+        String value = stringEnv(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.out.println("invalid " + name + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+}
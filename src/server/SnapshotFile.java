@@ -0,0 +1,132 @@
+package server;
+
+import marine.SpaceMarine;
+import message.Codec;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Binary dump of users and marines tagged with the change sequence value it is current up to.
+ * Marines are written in key order, so a restore can rebuild the store without sorting.
+ */
+class SnapshotFile {
+
+    private static final int MAGIC = 0x50564d53;
+    private static final int VERSION = 1;
+    private static final int CHUNK = 64 * 1024;
+
+    static final class Contents {
+        final long mark;
+        final Map<String, String> users;
+        final List<Map.Entry<Long, SpaceMarine>> marines;
+
+        Contents(long mark, Map<String, String> users, List<Map.Entry<Long, SpaceMarine>> marines) {
+            this.mark = mark;
+            this.users = users;
+            this.marines = marines;
+        }
+    }
+
+    private interface Record {
+        void write(ByteBuffer out);
+    }
+
+    private final Path path;
+
+    SnapshotFile(Path path) {
+        this.path = path.toAbsolutePath();
+    }
+
+    @Override
+    public String toString() {
+        return path.toString();
+    }
+
+    void write(long mark, Map<String, String> users, MarineStore.Snapshot snapshot) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(mark);
+            buffer = put(channel, buffer, out -> Codec.writeVarLong(out, users.size()));
+            for (Map.Entry<String, String> user : users.entrySet()) {
+                buffer = put(channel, buffer, out -> {
+                    Codec.writeString(out, user.getKey());
+                    Codec.writeString(out, user.getValue());
+                });
+            }
+            buffer = put(channel, buffer, out -> Codec.writeVarLong(out, snapshot.size()));
+            for (Map.Entry<Long, SpaceMarine> entry : snapshot.marines) {
+                buffer = put(channel, buffer, out -> {
+                    Codec.writeVarLong(out, entry.getKey());
+                    Codec.writeMarine(out, entry.getValue());
+                });
+            }
+            flush(channel, buffer);
+            channel.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static ByteBuffer put(FileChannel channel, ByteBuffer buffer, Record record) throws IOException {
+        while (true) {
+            int start = buffer.position();
+            try {
+                record.write(buffer);
+                return buffer;
+            } catch (BufferOverflowException e) {
+                buffer.position(start);
+                if (start == 0) {
+                    buffer = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+                } else {
+                    flush(channel, buffer);
+                }
+            }
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Maps the file and decodes it, or returns null if there is no usable snapshot.
+     */
+    Contents read() throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < 16 || in.getInt() != MAGIC || in.getInt() != VERSION) {
+                return null;
+            }
+            long mark = in.getLong();
+            int userCount = (int) Codec.readVarLong(in);
+            Map<String, String> users = new HashMap<>(userCount * 4 / 3 + 1);
+            for (int i = 0; i < userCount; i++) {
+                users.put(Codec.readString(in), Codec.readString(in));
+            }
+            int marineCount = (int) Codec.readVarLong(in);
+            List<Map.Entry<Long, SpaceMarine>> marines = new ArrayList<>(marineCount);
+            for (int i = 0; i < marineCount; i++) {
+                long key = Codec.readVarLong(in);
+                marines.add(new AbstractMap.SimpleImmutableEntry<>(key, Codec.readMarine(in)));
+            }
+            return new Contents(mark, users, marines);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
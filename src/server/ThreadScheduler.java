@@ -0,0 +1,62 @@
+package server;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+class ThreadScheduler implements RequestScheduler {
+
+    private final int maxInFlight;
+    private final Semaphore permits;
+    private final AtomicLong rejected = new AtomicLong();
+
+    ThreadScheduler(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        permits = new Semaphore(maxInFlight);
+    }
+
+    @Override
+    public boolean trySubmit(Runnable task) {
+        if (!permits.tryAcquire()) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        try {
+            new Thread(() -> {
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            }).start();
+            return true;
+        } catch (OutOfMemoryError e) {
+            permits.release();
+            rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    @Override
+    public int queueDepth() {
+        return 0;
+    }
+
+    @Override
+    public int active() {
+        return maxInFlight - permits.availablePermits();
+    }
+
+    @Override
+    public long rejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public String toString() {
+        return "thread per request, at most " + maxInFlight + " in flight";
+    }
+}